@@ -0,0 +1,51 @@
+import dnsbench.CacheOps;
+
+import java.time.Instant;
+
+//Cache entries for CacheBenchmark. Key i is an A question for host<i>.example.com, answered by one A record with a
+//TTL long enough that nothing expires during a run.
+public class CacheFixture implements CacheOps {
+
+    @Override
+    public void populate(int count) {
+        for (int i = 0; i < count; i++) {
+            insert(i);
+        }
+    }
+
+    @Override
+    public boolean lookup(int i) {
+        DNSQuestion dnsQuestion = question(i);
+        return DNSCache.isInCache(dnsQuestion) && DNSCache.getEntry(dnsQuestion) != null;
+    }
+
+    @Override
+    public boolean insert(int i) {
+        DNSQuestion dnsQuestion = question(i);
+
+        DNSRecord dnsRecord = new DNSRecord();
+        dnsRecord.NAME = dnsQuestion.QNAME;
+        dnsRecord.TYPE = 1;
+        dnsRecord.CLASS = 1;
+        dnsRecord.TTL = 3600;
+        dnsRecord.RDATA = new byte[]{10, (byte) (i >>> 16), (byte) (i >>> 8), (byte) i};
+        dnsRecord.RDLENGTH = 4;
+        dnsRecord.creationTime = Instant.now();
+
+        DNSCacheEntry entry = new DNSCacheEntry();
+        entry.answers.add(dnsRecord);
+        entry.creationTime = dnsRecord.creationTime;
+        entry.TTL = dnsRecord.TTL;
+        return DNSCache.addEntry(dnsQuestion, entry);
+    }
+
+    //The question for key i
+    private static DNSQuestion question(int i) {
+        DNSQuestion dnsQuestion = new DNSQuestion();
+        dnsQuestion.QNAME = DomainName.of("host" + i + ".example.com");
+        dnsQuestion.QType = 1;
+        dnsQuestion.QClass = 1;
+        return dnsQuestion;
+    }
+
+}
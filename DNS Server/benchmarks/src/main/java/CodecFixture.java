@@ -0,0 +1,95 @@
+import dnsbench.CodecOps;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+
+//Sample messages for CodecBenchmark: a dig-style query for www.example.com (with an OPT record), and the response to
+//it, a CNAME followed by four A records.
+public class CodecFixture implements CodecOps {
+
+    //Member Variables
+    private final byte[] queryBytes;
+    private final byte[] responseBytes;
+    private final DNSMessage response;
+
+
+    //Constructor, builds both messages once
+    public CodecFixture() throws IOException {
+        DNSQuestion dnsQuestion = new DNSQuestion();
+        dnsQuestion.QNAME = DomainName.of("www.example.com");
+        dnsQuestion.QType = 1;
+        dnsQuestion.QClass = 1;
+
+        DNSMessage query = new DNSMessage();
+        query.dnsHeader = new DNSHeader();
+        query.dnsHeader.ID = 0x1234;
+        query.dnsHeader.RD = true;
+        query.dnsQuestions.add(dnsQuestion);
+        query.dnsAdditionalRecords.add(record(".", (short) 41, 0, new byte[0]));
+        query.dnsHeader.QDCOUNT = 1;
+        query.dnsHeader.ARCOUNT = 1;
+        queryBytes = query.toBytes();
+
+        DNSMessage built = new DNSMessage();
+        built.dnsQuestions = query.dnsQuestions;
+        built.dnsAnswers.add(record("www.example.com", (short) 5, 300, wire("cdn.example.net")));
+        for (int i = 1; i <= 4; i++) {
+            built.dnsAnswers.add(record("cdn.example.net", (short) 1, 60, new byte[]{93, (byte) 184, (byte) 216, (byte) i}));
+        }
+        built.dnsAdditionalRecords = query.dnsAdditionalRecords;
+        built.dnsHeader = DNSHeader.buildResponseHeader(query, built);
+        responseBytes = built.toBytes();
+        response = DNSMessage.decodeMessage(responseBytes);
+    }
+
+
+    @Override
+    public Object decodeQuery() throws IOException {
+        return DNSMessage.decodeMessage(queryBytes);
+    }
+
+    @Override
+    public Object decodeResponse() throws IOException {
+        return DNSMessage.decodeMessage(responseBytes);
+    }
+
+    @Override
+    public Object viewQuestion() throws IOException {
+        return DNSMessageView.wrap(queryBytes, queryBytes.length).question(0);
+    }
+
+    @Override
+    public byte[] toBytes() {
+        return response.toBytes();
+    }
+
+    @Override
+    public int writeTo(ByteBuffer buffer) {
+        response.writeTo(buffer);
+        return buffer.position();
+    }
+
+
+    //A record with the given owner, type, TTL and data
+    private static DNSRecord record(String name, short type, int ttl, byte[] rdata) {
+        DNSRecord dnsRecord = new DNSRecord();
+        dnsRecord.NAME = DomainName.of(name);
+        dnsRecord.TYPE = type;
+        dnsRecord.CLASS = 1;
+        dnsRecord.TTL = ttl;
+        dnsRecord.RDATA = rdata;
+        dnsRecord.RDLENGTH = (short) rdata.length;
+        dnsRecord.creationTime = Instant.now();
+        return dnsRecord;
+    }
+
+    //Uncompressed wire form of a name, for RDATA
+    private static byte[] wire(String name) {
+        DomainName domainName = DomainName.of(name);
+        ByteBuffer buffer = ByteBuffer.allocate(domainName.wireLength());
+        domainName.writeTo(buffer);
+        return buffer.array();
+    }
+
+}
@@ -0,0 +1,153 @@
+import dnsbench.ServerOps;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+//A DNSServer on loopback that forwards to a fake upstream running in the same process. The fake upstream answers
+//every question with one A record, so misses measure the server's own forwarding work rather than the network. The
+//server runs without per-insert printing or a metrics endpoint, so neither the console nor a port clash ends up in
+//the numbers, and a reply that never comes (dropped or shed) costs a timeout instead of hanging the run.
+public class ServerFixture implements ServerOps {
+
+    //Longest to wait for a reply
+    private static final int REPLY_TIMEOUT_MS = 1000;
+
+    //One benchmark thread's socket, non-blocking, and a selector to wait on it with a timeout
+    private static final class Client {
+        DatagramChannel channel;
+        Selector selector;
+    }
+
+    //Member Variables
+    private DatagramChannel upstream;
+    private DNSServer server;
+    private InetSocketAddress serverAddress;
+    private volatile boolean running = true;
+
+    //Each benchmark thread has its own client socket
+    private final ThreadLocal<Client> client = ThreadLocal.withInitial(() -> {
+        try {
+            Client client = new Client();
+            client.channel = DatagramChannel.open();
+            client.channel.connect(serverAddress);
+            client.channel.configureBlocking(false);
+            client.selector = Selector.open();
+            client.channel.register(client.selector, SelectionKey.OP_READ);
+            return client;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private final ThreadLocal<ByteBuffer> clientBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(4096));
+
+
+    @Override
+    public void start() throws Exception {
+        //Fake upstream on a free port
+        upstream = DatagramChannel.open();
+        upstream.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread upstreamThread = new Thread(this::answerQueries, "fake-upstream");
+        upstreamThread.setDaemon(true);
+        upstreamThread.start();
+
+        //DNSConfig reads these the first time it is used, which is when the server is created below
+        int port = freePort();
+        System.setProperty("dns.port", Integer.toString(port));
+        System.setProperty("dns.upstream", "127.0.0.1");
+        System.setProperty("dns.upstream.port", Integer.toString(upstream.socket().getLocalPort()));
+        System.setProperty("dns.log.inserts", "false");
+        System.setProperty("dns.metrics.port", "0");
+        serverAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+
+        server = new DNSServer();
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.run();
+            } catch (IOException e) {
+                System.out.println("Server stopped: " + e.getMessage());
+            }
+        }, "dns-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+    }
+
+    @Override
+    public int query(String name) throws Exception {
+        DNSQuestion dnsQuestion = new DNSQuestion();
+        dnsQuestion.QNAME = DomainName.of(name);
+        dnsQuestion.QType = 1;
+        dnsQuestion.QClass = 1;
+        DNSMessage query = new DNSMessage();
+        query.dnsHeader = new DNSHeader();
+        query.dnsHeader.ID = (short) name.hashCode();
+        query.dnsHeader.RD = true;
+        query.dnsHeader.QDCOUNT = 1;
+        query.dnsQuestions.add(dnsQuestion);
+
+        Client client = this.client.get();
+        ByteBuffer buffer = clientBuffer.get();
+
+        //Throw away late replies to earlier queries that timed out
+        do {
+            buffer.clear();
+        } while (client.channel.read(buffer) > 0);
+
+        buffer.clear();
+        query.writeTo(buffer);
+        buffer.flip();
+        client.channel.write(buffer);
+        buffer.clear();
+        client.selector.selectedKeys().clear();
+        if (client.selector.select(REPLY_TIMEOUT_MS) == 0) {
+            return 0;
+        }
+        return client.channel.read(buffer);
+    }
+
+    @Override
+    public void stop() throws Exception {
+        running = false;
+        server.stop();
+        upstream.close();
+    }
+
+
+    //Fake upstream loop: turn each query into a response with one A record pointing back at the question name
+    private void answerQueries() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+        while (running) {
+            try {
+                buffer.clear();
+                SocketAddress sender = upstream.receive(buffer);
+                buffer.flip();
+                int length = buffer.limit();
+                buffer.put(2, (byte) 0x81);
+                buffer.put(3, (byte) 0x80);
+                buffer.putShort(6, (short) 1);
+                buffer.limit(buffer.capacity());
+                buffer.position(length);
+                buffer.putShort((short) 0xC00C).putShort((short) 1).putShort((short) 1).putInt(300)
+                        .putShort((short) 4).put(new byte[]{127, 0, 0, 1});
+                buffer.flip();
+                upstream.send(buffer, sender);
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    //A UDP port nobody is using right now
+    private static int freePort() throws IOException {
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            probe.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            return probe.socket().getLocalPort();
+        }
+    }
+
+}
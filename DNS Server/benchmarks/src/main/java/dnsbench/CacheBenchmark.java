@@ -0,0 +1,63 @@
+package dnsbench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+//DNSCache throughput with many threads at once: pure lookups, and lookups racing with inserts that force evictions
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Ddns.cache.entries=100000"})
+@State(Scope.Benchmark)
+public class CacheBenchmark {
+
+    //Number of distinct keys looked up; more than the cache holds means some lookups miss
+    @Param({"50000", "200000"})
+    public int keys;
+
+    private CacheOps cache;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        cache = Fixtures.load("CacheFixture", CacheOps.class);
+        cache.populate(keys);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean lookup() {
+        return cache.lookup(ThreadLocalRandom.current().nextInt(keys));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(6)
+    public boolean mixedLookup() {
+        return cache.lookup(ThreadLocalRandom.current().nextInt(keys));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(2)
+    public boolean mixedInsert() {
+        return cache.insert(ThreadLocalRandom.current().nextInt(keys * 2));
+    }
+
+}
@@ -0,0 +1,15 @@
+package dnsbench;
+
+//DNSCache operations measured by CacheBenchmark, implemented by CacheFixture
+public interface CacheOps {
+
+    //Fill the cache with entries for keys 0 to count - 1
+    void populate(int count);
+
+    //isInCache/getEntry for key i; true on a hit
+    boolean lookup(int i);
+
+    //addEntry for key i; true if the cache admitted it
+    boolean insert(int i);
+
+}
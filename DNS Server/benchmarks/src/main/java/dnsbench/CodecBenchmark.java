@@ -0,0 +1,61 @@
+package dnsbench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+//Cost of decoding and encoding single messages, the work done on every query
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    private CodecOps codec;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setup() {
+        codec = Fixtures.load("CodecFixture", CodecOps.class);
+        buffer = ByteBuffer.allocateDirect(65535);
+    }
+
+    @Benchmark
+    public Object decodeQuery() throws Exception {
+        return codec.decodeQuery();
+    }
+
+    @Benchmark
+    public Object decodeResponse() throws Exception {
+        return codec.decodeResponse();
+    }
+
+    @Benchmark
+    public Object viewQuestion() throws Exception {
+        return codec.viewQuestion();
+    }
+
+    @Benchmark
+    public byte[] toBytes() {
+        return codec.toBytes();
+    }
+
+    @Benchmark
+    public int writeTo() {
+        buffer.clear();
+        return codec.writeTo(buffer);
+    }
+
+}
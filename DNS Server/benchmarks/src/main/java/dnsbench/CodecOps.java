@@ -0,0 +1,23 @@
+package dnsbench;
+
+import java.nio.ByteBuffer;
+
+//Encoding and decoding operations measured by CodecBenchmark, implemented by CodecFixture
+public interface CodecOps {
+
+    //DNSMessage.decodeMessage on a typical client query
+    Object decodeQuery() throws Exception;
+
+    //DNSMessage.decodeMessage on a response with a CNAME and several A records
+    Object decodeResponse() throws Exception;
+
+    //DNSMessageView: find and materialise only the first question of the query
+    Object viewQuestion() throws Exception;
+
+    //DNSMessage.toBytes on that response
+    byte[] toBytes();
+
+    //DNSMessage.writeTo into the given buffer, returning the encoded length
+    int writeTo(ByteBuffer buffer);
+
+}
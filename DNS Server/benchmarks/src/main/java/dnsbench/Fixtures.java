@@ -0,0 +1,20 @@
+package dnsbench;
+
+//The server classes live in the default package, which code in a named package can't refer to, and JMH won't generate
+//benchmarks for classes in the default package. So each benchmark drives a small fixture class that sits in the default
+//package next to the server code, through one of the interfaces in this package. The fixtures are loaded by name here.
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    //Create the default-package fixture with the given class name
+    static <T> T load(String className, Class<T> type) {
+        try {
+            return type.cast(Class.forName(className).getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can't load benchmark fixture " + className, e);
+        }
+    }
+
+}
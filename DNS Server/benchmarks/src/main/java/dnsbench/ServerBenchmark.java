@@ -0,0 +1,57 @@
+package dnsbench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Round trips through a real DNSServer on loopback, forwarding to a fake upstream in the same process.
+//"hit" asks for one name over and over (served from the cache), "miss" asks for a new name every time.
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@State(Scope.Benchmark)
+public class ServerBenchmark {
+
+    private ServerOps server;
+    private final AtomicLong counter = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        server = Fixtures.load("ServerFixture", ServerOps.class);
+        server.start();
+        server.query("hit.example.com");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int hit() throws Exception {
+        return server.query("hit.example.com");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int miss() throws Exception {
+        return server.query("miss" + counter.incrementAndGet() + ".example.com");
+    }
+
+}
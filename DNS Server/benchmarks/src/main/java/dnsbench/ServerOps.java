@@ -0,0 +1,16 @@
+package dnsbench;
+
+//End-to-end operations measured by ServerBenchmark, implemented by ServerFixture
+public interface ServerOps {
+
+    //Start a fake upstream resolver and a DNSServer that forwards to it, both on loopback
+    void start() throws Exception;
+
+    //Send one query for name from the calling thread's socket and wait for the reply. Returns the reply length, or 0
+    //if no reply came back in time.
+    int query(String name) throws Exception;
+
+    //Stop the server and the fake upstream
+    void stop() throws Exception;
+
+}
@@ -0,0 +1,53 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+//A pool of same-sized direct buffers for packets. Direct buffers are slow to allocate and are only freed by the garbage
+//collector, so the listeners take a buffer from here for every datagram they read and the worker that finishes with
+//it gives it back. When the pool runs dry a new buffer is allocated; when it is full a returned buffer is dropped, so
+//the pool only ever holds as many buffers as were needed at the busiest moment, up to its capacity.
+public class DNSBufferPool {
+
+    //Member Variables
+    private final int bufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> free;
+
+
+    //Constructor
+    DNSBufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(capacity);
+    }
+
+
+    //Take a cleared buffer from the pool, or allocate one if the pool is empty
+    ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    //Give a buffer back. It must not be used again by the caller.
+    void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.capacity() == bufferSize) {
+            free.offer(buffer);
+        }
+    }
+
+    //Number of buffers waiting to be reused
+    int available() {
+        return free.size();
+    }
+
+    //IDE generated toString method. Useful for debugging
+    @Override
+    public String toString() {
+        return "DNSBufferPool{" +
+                "bufferSize=" + bufferSize +
+                ", available=" + free.size() +
+                '}';
+    }
+
+}
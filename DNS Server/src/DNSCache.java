@@ -1,51 +1,435 @@
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
-//This is the local cache. It just stores the first answer for any question in the cache (a response for
-// google.com might return 10 IP addresses, it just stores the first one). This class has methods for
-// querying and inserting records into the cache. If an entry is too old (its TTL has expired),
-// it is removed.
+//This is the local cache. It stores the complete upstream answer for each question (a response for google.com
+// might return 10 IP addresses, all of them are kept, along with the authority and additional records, see
+// DNSCacheEntry). This class has methods for querying and inserting entries into the cache. If an entry is too old
+// (its TTL has expired), it is removed. Several worker threads use the cache at once, so it is backed by a ConcurrentHashMap.
+//The cache is bounded by an entry count and an estimated byte budget. When it is full, a new entry only gets in if
+//it has been asked for more often than the least recently used entry it would replace (TinyLFU admission, see
+//DNSFrequencySketch). Expired entries are swept out in the background by a timer wheel with one slot per second,
+//so names that are never asked for again don't sit in memory forever. Popular entries are refreshed shortly before
+//they expire (prefetch), so a hot name doesn't cost some unlucky client an upstream round trip once per TTL.
+//With serve-stale on, expired entries are kept for dns.cache.stale more seconds, so the resolver can still answer from
+//them while upstream is down or slow.
+//With dns.cache.store=offheap the entries live in direct memory instead (see DNSOffHeapCache), which keeps very large
+//caches out of the garbage collector's way; the methods below hand everything over to it.
 public class DNSCache {
 
+    //One cached entry. The LRU and timer wheel links are only touched while holding the lock.
+    static final class Node {
+        DNSQuestion key;
+        DNSCacheEntry value;
+        long expiresAt;         //Epoch milliseconds
+        long retainUntil;       //When it is removed; later than expiresAt when expired entries are kept to serve stale
+        int weight;             //Estimated bytes used
+        Node prev, next;        //LRU list, most recently used at the front
+        Node timerPrev, timerNext;
+        boolean removed;
+        int hits;               //Hits since it was cached, counted loosely without the lock
+        volatile boolean prefetched;
+    }
+
+    //Hits and misses waiting to be applied to the sketch and the LRU list. Readers never wait for the cache lock to
+    //note a read: each appends to the buffer picked by its thread, under that buffer's own lock, and the events are
+    //applied in bulk by whoever next holds the cache lock. Only a reader that finds its buffer full waits, to drain it.
+    private static final class ReadBuffer {
+        final ReentrantLock lock = new ReentrantLock();
+        final int[] hashes = new int[READ_BUFFER_SIZE];
+        final Node[] nodes = new Node[READ_BUFFER_SIZE];    //The entry that was hit, or null for a miss
+        int size;
+    }
+
+    //Number of one second slots in the timer wheel. Entries with longer TTLs wrap around and are skipped until due.
+    private static final int WHEEL_SLOTS = 4096;
+
+    //Reads each buffer holds, and the number of buffers (a power of two, several per core)
+    private static final int READ_BUFFER_SIZE = 32;
+    private static final int READ_BUFFERS = Integer.highestOneBit(4 * Runtime.getRuntime().availableProcessors() - 1) << 1;
+
+    //How long expired entries are kept, so they can still be served if upstream can't be reached (RFC 8767)
+    static final long STALE_MS = DNSConfig.CACHE_STALE_SECONDS * 1000L;
+
+    //Limits
+    static final int MAX_ENTRIES = DNSConfig.CACHE_MAX_ENTRIES;
+    static final long MAX_BYTES = DNSConfig.CACHE_MAX_BYTES;
+
+    //Off-heap store, used instead of everything below when configured
+    private static final DNSOffHeapCache offHeap = DNSConfig.CACHE_OFF_HEAP
+            ? new DNSOffHeapCache(MAX_ENTRIES, MAX_BYTES, DNSConfig.CACHE_SLAB_BYTES, STALE_MS) : null;
+
     //Store the DNS cache here
-    static HashMap<DNSQuestion, DNSRecord> hashMap = new HashMap<>();
+    static ConcurrentHashMap<DNSQuestion, Node> hashMap = new ConcurrentHashMap<>();
+
+    //Guards the LRU list, the timer wheel, the sketch and the totals
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static final Node lru = sentinel();
+    private static final Node[] wheel = new Node[WHEEL_SLOTS];
+    private static final DNSFrequencySketch sketch = new DNSFrequencySketch(MAX_ENTRIES);
+    private static long totalBytes;
+    private static long lastSweepSecond = System.currentTimeMillis() / 1000;
+    private static final ReadBuffer[] readBuffers = new ReadBuffer[READ_BUFFERS];
+
+    //Called with the question of a popular entry that is about to expire, so it can be refreshed in the background
+    private static volatile Consumer<DNSQuestion> prefetcher;
+
+    //Background thread that sweeps expired entries once a second
+    private static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "dns-cache-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        for (int i = 0; i < WHEEL_SLOTS; i++) {
+            wheel[i] = sentinel();
+        }
+        for (int i = 0; i < READ_BUFFERS; i++) {
+            readBuffers[i] = new ReadBuffer();
+        }
+        sweeper.scheduleAtFixedRate(DNSCache::sweep, 1, 1, TimeUnit.SECONDS);
+    }
+
 
     //Search hashmap for key
     static boolean isInCache(DNSQuestion dnsQuestion) {
+        if (offHeap != null) {
+            return offHeap.isInCache(dnsQuestion, DNSConfig.CACHE_PREFETCH ? prefetcher : null);
+        }
+
+        //Look the question up once so another thread can't remove it between the check and the read
+        Node node = hashMap.get(dnsQuestion);
 
         //If the question is found
-        if (hashMap.containsKey(dnsQuestion)) {
+        if (node != null) {
 
             //Check the timestamp
-            if (hashMap.get(dnsQuestion).timestampValid()) {
+            long now = System.currentTimeMillis();
+            if (node.expiresAt > now) {
 
-                //If valid
+                //If valid, note the hit for the sketch and the LRU order
+                recordRead(dnsQuestion.hashCode(), node);
+                maybePrefetch(node, now);
                 return true;
             } else {
 
-                //If invalid, remove the record, return false
-                hashMap.remove(dnsQuestion);
+                //If invalid, remove the record (only if nobody replaced it meanwhile), return false. Expired entries
+                //inside the serve-stale window are kept for getStale().
+                if (node.retainUntil <= now && remove(node)) {
+                    DNSMetrics.cacheExpirations.increment();
+                }
                 return false;
             }
         } else {
 
-            //If not found
+            //If not found, still count the request so a name that keeps missing can win admission
+            recordRead(dnsQuestion.hashCode(), null);
             return false;
         }
 
     }
 
-    //Setter for the hashmap
-    static boolean addRecord(DNSQuestion dnsQuestion, DNSRecord dnsRecord) {
-        //Add record
-        hashMap.put(dnsQuestion, dnsRecord);
+    //Setter for the hashmap. Returns false if the admission policy decided the entry wasn't worth keeping.
+    static boolean addEntry(DNSQuestion dnsQuestion, DNSCacheEntry entry) {
+        if (offHeap != null) {
+            return offHeap.put(dnsQuestion, entry);
+        }
+        Node node = new Node();
+        node.key = dnsQuestion;
+        node.value = entry;
+        node.expiresAt = entry.expiresAt();
+        node.retainUntil = node.expiresAt + STALE_MS;
+        node.weight = weigh(dnsQuestion, entry);
+
+        lock.lock();
+        try {
+            drainReadBuffers();
+            sketch.increment(dnsQuestion.hashCode());
+
+            //Make room before touching any older entry for the same question, so that if the newcomer doesn't get in
+            //the question keeps the answer it had. Each time the newcomer is compared against the least recently used
+            //entry; a replacement is already known to be wanted and only has to fit.
+            Node existing = hashMap.get(dnsQuestion);
+            int count = hashMap.size() + (existing == null ? 1 : 0);
+            long bytes = totalBytes + node.weight - (existing == null ? 0 : existing.weight);
+            int candidateFrequency = sketch.frequency(dnsQuestion.hashCode());
+            while (count > MAX_ENTRIES || bytes > MAX_BYTES) {
+                Node victim = lru.prev;
+                if (victim == existing) {
+                    victim = victim.prev;
+                }
+                if (victim == lru || (existing == null && candidateFrequency <= sketch.frequency(victim.key.hashCode()))) {
+                    //Too big to fit at all, or less popular than what it would push out, so it doesn't get in
+                    DNSMetrics.cacheRejections.increment();
+                    return false;
+                }
+                hashMap.remove(victim.key, victim);
+                unlinkAll(victim);
+                DNSMetrics.cacheEvictions.increment();
+                count--;
+                bytes -= victim.weight;
+            }
+
+            //Replace any older entry for the same question
+            hashMap.put(dnsQuestion, node);
+            if (existing != null) {
+                unlinkAll(existing);
+            }
+            linkLru(node);
+            linkTimer(node);
+            totalBytes += node.weight;
+        } finally {
+            lock.unlock();
+        }
 
         //Confirm record was added
-        return hashMap.get(dnsQuestion) == dnsRecord;
+        return true;
+    }
+
+    //Getter for DNSCacheEntry
+    static DNSCacheEntry getEntry(DNSQuestion dnsQuestion) {
+        if (offHeap != null) {
+            return offHeap.get(dnsQuestion, true);
+        }
+        Node node = hashMap.get(dnsQuestion);
+        return node == null ? null : node.value;
+    }
+
+    //The entry for a question with at least its pre-encoded response, for answering straight from the wire. Its
+    //sections may be empty.
+    static DNSCacheEntry getEncoded(DNSQuestion dnsQuestion) {
+        if (offHeap != null) {
+            return offHeap.get(dnsQuestion, false);
+        }
+        return getEntry(dnsQuestion);
+    }
+
+    //An entry that has expired but is still inside the serve-stale window, or null
+    static DNSCacheEntry getStale(DNSQuestion dnsQuestion) {
+        if (offHeap != null) {
+            DNSCacheEntry entry = offHeap.get(dnsQuestion, true);
+            long now = System.currentTimeMillis();
+            return entry != null && entry.expiresAt() <= now && entry.expiresAt() + STALE_MS > now ? entry : null;
+        }
+        Node node = hashMap.get(dnsQuestion);
+        long now = System.currentTimeMillis();
+        if (node == null || node.expiresAt > now || node.retainUntil <= now) {
+            return null;
+        }
+        return node.value;
+    }
+
+    //Hand every entry that hasn't yet left the cache to action, encoded (see DNSCacheSnapshot). Entries that aren't
+    //pre-encoded are handed over as encoded copies.
+    static void forEach(Consumer<DNSCacheEntry> action) {
+        if (offHeap != null) {
+            offHeap.forEach(action);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Node node : hashMap.values()) {
+            if (node.retainUntil <= now) {
+                continue;
+            }
+            try {
+                action.accept(node.value.encoded(node.key));
+            } catch (IOException e) {
+                System.out.println("Failed to encode " + node.key.QNAME + ": " + e.getMessage());
+            }
+        }
+    }
+
+    //Set who refreshes popular entries before they expire (see DNSServer)
+    static void setPrefetcher(Consumer<DNSQuestion> refresh) {
+        prefetcher = refresh;
     }
 
-    //Getter for DNSRecord
-    static DNSRecord getRecord(DNSQuestion dnsQuestion) {
-        return hashMap.get(dnsQuestion);
+    //Number of entries currently cached
+    static int size() {
+        return offHeap != null ? offHeap.size() : hashMap.size();
+    }
+
+
+    //Count a hit, and once a popular entry is into the last CACHE_PREFETCH_PERCENT of its TTL, ask for it to be
+    //refreshed. The new answer replaces the entry before it expires, so clients asking for hot names never wait on
+    //upstream. Each entry is only handed over once; the refreshed entry starts counting from zero.
+    private static void maybePrefetch(Node node, long now) {
+        int hits = ++node.hits;
+        Consumer<DNSQuestion> refresh = prefetcher;
+        if (refresh == null || !DNSConfig.CACHE_PREFETCH || node.prefetched
+                || !dueForPrefetch(hits, node.expiresAt, node.value.TTL, now)) {
+            return;
+        }
+        node.prefetched = true;
+        refresh.accept(node.key);
+    }
+
+    //True once an entry with this many hits is into the last CACHE_PREFETCH_PERCENT of its TTL
+    static boolean dueForPrefetch(int hits, long expiresAt, int ttl, long now) {
+        return hits >= DNSConfig.CACHE_PREFETCH_HITS && (expiresAt - now) * 100 <= ttl * 1000L * DNSConfig.CACHE_PREFETCH_PERCENT;
+    }
+
+    //Note a read in this thread's buffer. Once the buffer is half full it is drained if the cache lock happens to be
+    //free; a reader that finds it completely full waits for the lock and drains it, so no read is ever lost.
+    private static void recordRead(int hash, Node node) {
+        ReadBuffer buffer = readBuffers[(int) Thread.currentThread().getId() & (READ_BUFFERS - 1)];
+        while (true) {
+            boolean recorded = false;
+            int size;
+            buffer.lock.lock();
+            try {
+                size = buffer.size;
+                if (size < READ_BUFFER_SIZE) {
+                    buffer.hashes[size] = hash;
+                    buffer.nodes[size] = node;
+                    buffer.size = ++size;
+                    recorded = true;
+                }
+            } finally {
+                buffer.lock.unlock();
+            }
+            if (recorded && (size < READ_BUFFER_SIZE / 2 || !lock.tryLock())) {
+                return;
+            }
+            if (!recorded) {
+                lock.lock();
+            }
+            try {
+                drainReadBuffers();
+            } finally {
+                lock.unlock();
+            }
+            if (recorded) {
+                return;
+            }
+        }
+    }
+
+    //Apply every buffered read: count it in the sketch, and move an entry that was hit to the front of the LRU list.
+    //Requires the lock.
+    private static void drainReadBuffers() {
+        for (ReadBuffer buffer : readBuffers) {
+            buffer.lock.lock();
+            try {
+                for (int i = 0; i < buffer.size; i++) {
+                    sketch.increment(buffer.hashes[i]);
+                    Node node = buffer.nodes[i];
+                    if (node != null && !node.removed) {
+                        unlinkLru(node);
+                        linkLru(node);
+                    }
+                    buffer.nodes[i] = null;
+                }
+                buffer.size = 0;
+            } finally {
+                buffer.lock.unlock();
+            }
+        }
+    }
+
+    //Drop an entry from the map and every list it is on. False if it was already gone.
+    private static boolean remove(Node node) {
+        lock.lock();
+        try {
+            if (node.removed) {
+                return false;
+            }
+            hashMap.remove(node.key, node);
+            unlinkAll(node);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Walk the wheel slots for every second since the last sweep and remove what has expired
+    static void sweep() {
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            drainReadBuffers();
+            long nowSecond = now / 1000;
+            long from = Math.max(lastSweepSecond, nowSecond - WHEEL_SLOTS + 1);
+            for (long second = from; second <= nowSecond; second++) {
+                Node slot = wheel[(int) (second & (WHEEL_SLOTS - 1))];
+                Node node = slot.timerNext;
+                while (node != slot) {
+                    Node next = node.timerNext;
+                    if (node.retainUntil <= now) {
+                        hashMap.remove(node.key, node);
+                        unlinkAll(node);
+                        DNSMetrics.cacheExpirations.increment();
+                    }
+                    node = next;
+                }
+            }
+            lastSweepSecond = nowSecond;
+        } catch (RuntimeException e) {
+            System.out.println("Cache sweep failed: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    //Rough heap cost of an entry: fixed object overhead plus the names and data it holds
+    private static int weigh(DNSQuestion dnsQuestion, DNSCacheEntry entry) {
+        int weight = 200 + 40 + dnsQuestion.QNAME.wireLength();
+        for (ArrayList<DNSRecord> section : entry.sections()) {
+            for (DNSRecord dnsRecord : section) {
+                //Record names are usually interned and shared with the question, so only the record itself counts
+                weight += 96 + dnsRecord.RDLENGTH;
+            }
+        }
+        if (entry.wire != null) {
+            weight += 48 + entry.wire.length + 8 * entry.ttls.length;
+        }
+        return weight;
+    }
+
+    //List helpers. All of these require the lock.
+    private static Node sentinel() {
+        Node node = new Node();
+        node.prev = node.next = node;
+        node.timerPrev = node.timerNext = node;
+        return node;
+    }
+
+    private static void linkLru(Node node) {
+        node.next = lru.next;
+        node.prev = lru;
+        lru.next.prev = node;
+        lru.next = node;
+    }
+
+    private static void unlinkLru(Node node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+    }
+
+    private static void linkTimer(Node node) {
+        Node slot = wheel[(int) ((node.retainUntil / 1000) & (WHEEL_SLOTS - 1))];
+        node.timerNext = slot.timerNext;
+        node.timerPrev = slot;
+        slot.timerNext.timerPrev = node;
+        slot.timerNext = node;
+    }
+
+    private static void unlinkAll(Node node) {
+        if (node.removed) {
+            return;
+        }
+        node.removed = true;
+        unlinkLru(node);
+        node.timerPrev.timerNext = node.timerNext;
+        node.timerNext.timerPrev = node.timerPrev;
+        totalBytes -= node.weight;
     }
 
 }
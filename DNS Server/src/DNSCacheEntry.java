@@ -0,0 +1,246 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+//Everything the cache knows about one question: the full answer, authority and additional sections from the
+//upstream reply, so a name with ten A records or a CNAME chain is served exactly as Google answered it.
+//The whole entry lives as long as the shortest TTL in it. It can also keep the response pre-encoded, so a cache hit
+//is just a copy of those bytes with a few fields patched.
+//Negative answers (NXDOMAIN, and NODATA: success but no records of the asked type) are entries too, with no answers
+//and the SOA record upstream put in the authority section. They live as long as RFC 2308 says: the smaller of that
+//SOA's TTL and its MINIMUM field, capped at dns.cache.negative.max seconds.
+public class DNSCacheEntry {
+
+    //RCODE for a name that doesn't exist, and the SOA record TYPE
+    static final byte NXDOMAIN = 3;
+    private static final short SOA = 6;
+
+    //Member Variables
+    ArrayList<DNSRecord> answers = new ArrayList<>();
+    ArrayList<DNSRecord> authorityRecords = new ArrayList<>();
+    ArrayList<DNSRecord> additionalRecords = new ArrayList<>();
+    Instant creationTime;
+    int TTL;                //Minimum TTL of all the records, in seconds
+    byte RCODE;             //Response code upstream gave for this question
+
+    //The whole response already encoded (header, question and every cached record, no OPT record), plus where each
+    //record's TTL sits in it. Null unless encode() was called.
+    byte[] wire;
+    int[] ttlOffsets;
+    int[] ttls;
+    int questionEnd;
+
+
+    //Build the cache entry for one question of an upstream response
+    static DNSCacheEntry fromResponse(DNSMessage response, DNSQuestion dnsQuestion) {
+        DNSCacheEntry entry = new DNSCacheEntry();
+        entry.creationTime = Instant.now();
+        entry.RCODE = response.dnsHeader.RCODE;
+
+        //With one question every record belongs to it. With several, keep the records owned by this question's name.
+        boolean onlyQuestion = response.dnsQuestions.size() == 1;
+        for (DNSRecord dnsRecord : response.dnsAnswers) {
+            if (onlyQuestion || dnsRecord.NAME.equals(dnsQuestion.QNAME)) {
+                entry.answers.add(dnsRecord);
+            }
+        }
+        if (onlyQuestion) {
+            entry.authorityRecords.addAll(response.dnsAuthorityRecords);
+        }
+        for (DNSRecord dnsRecord : response.dnsAdditionalRecords) {
+            //The OPT pseudo-record (type 41) describes the message, not the name, so it's never cached
+            if (onlyQuestion && dnsRecord.TYPE != 41) {
+                entry.additionalRecords.add(dnsRecord);
+            }
+        }
+
+        //The entry expires with its shortest-lived record
+        entry.TTL = Integer.MAX_VALUE;
+        for (ArrayList<DNSRecord> section : entry.sections()) {
+            for (DNSRecord dnsRecord : section) {
+                entry.TTL = Math.min(entry.TTL, dnsRecord.TTL);
+            }
+        }
+        if (entry.TTL == Integer.MAX_VALUE) {
+            entry.TTL = 0;
+        }
+        if (entry.isNegative()) {
+            entry.TTL = entry.negativeTTL();
+        }
+        return entry;
+    }
+
+    //Work out how long a negative answer can be cached from its SOA record, and give the SOA that TTL so clients
+    //count it down too. 0 (don't cache) if there is no SOA.
+    private int negativeTTL() {
+        for (int i = 0; i < authorityRecords.size(); i++) {
+            DNSRecord dnsRecord = authorityRecords.get(i);
+            //SOA RDATA ends with SERIAL, REFRESH, RETRY, EXPIRE and MINIMUM, 4 bytes each
+            if (dnsRecord.TYPE != SOA || dnsRecord.RDATA.length < 22) {
+                continue;
+            }
+            int minimum = ByteBuffer.wrap(dnsRecord.RDATA).getInt(dnsRecord.RDATA.length - 4);
+            int ttl = Math.min(Math.min(dnsRecord.TTL, minimum), DNSConfig.CACHE_NEGATIVE_MAX);
+            if (ttl <= 0) {
+                return 0;
+            }
+            authorityRecords.set(i, dnsRecord.withTTL(ttl));
+            return ttl;
+        }
+        return 0;
+    }
+
+    //True for NXDOMAIN, and for NODATA (no error, but no answers either)
+    boolean isNegative() {
+        return answers.isEmpty() && (RCODE == 0 || RCODE == NXDOMAIN);
+    }
+
+
+    //Encode the response for this entry once, so cache hits can be answered by copying bytes. The question is
+    //written exactly as given; hits are only served this way to clients whose question bytes are the same length.
+    void encode(DNSQuestion dnsQuestion) throws IOException {
+        DNSMessage response = new DNSMessage();
+        response.dnsQuestions.add(dnsQuestion);
+        response.dnsAnswers = answers;
+        response.dnsAuthorityRecords = authorityRecords;
+        response.dnsAdditionalRecords = additionalRecords;
+        response.dnsHeader = new DNSHeader();
+        response.dnsHeader.QR = true;
+        response.dnsHeader.RA = true;
+        response.dnsHeader.RCODE = RCODE;
+        response.dnsHeader.QDCOUNT = 1;
+        response.dnsHeader.ANCOUNT = (short) answers.size();
+        response.dnsHeader.NSCOUNT = (short) authorityRecords.size();
+        response.dnsHeader.ARCOUNT = (short) additionalRecords.size();
+        byte[] bytes = response.toBytes();
+
+        //Find every TTL by walking the encoded message
+        DNSMessageView view = DNSMessageView.wrap(bytes, bytes.length);
+        int[] offsets = new int[view.recordCount()];
+        int[] values = new int[offsets.length];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = view.recordFieldsOffset(i) + 4;
+            values[i] = view.buffer.getInt(offsets[i]);
+        }
+        questionEnd = view.questionEnd();
+        ttlOffsets = offsets;
+        ttls = values;
+        wire = bytes;
+    }
+
+
+    //This entry if it is already encoded, otherwise an encoded copy. Entries in the cache are shared between threads,
+    //so they are never encoded in place once they are in it.
+    DNSCacheEntry encoded(DNSQuestion dnsQuestion) throws IOException {
+        if (wire != null) {
+            return this;
+        }
+        DNSCacheEntry copy = new DNSCacheEntry();
+        copy.answers = answers;
+        copy.authorityRecords = authorityRecords;
+        copy.additionalRecords = additionalRecords;
+        copy.creationTime = creationTime;
+        copy.TTL = TTL;
+        copy.RCODE = RCODE;
+        copy.encode(dnsQuestion);
+        return copy;
+    }
+
+
+    //Write the pre-encoded response to a request into out: copy the cached bytes, then patch in the client's ID,
+    //flags and question, count the TTLs down, and append our OPT record if the client sent one.
+    //Returns false (leaving out untouched) when the request can't be answered this way.
+    boolean writeResponse(ByteBuffer out, DNSMessageView request) throws IOException {
+        byte[] bytes = wire;
+        if (bytes == null || request.questionCount() != 1 || request.questionEnd() != questionEnd
+                || DNSEdns.version(request) != 0) {
+            return false;
+        }
+        int start = out.position();
+        if (out.remaining() < bytes.length) {
+            return false;
+        }
+        out.put(bytes);
+
+        //ID, then QR/OPCODE/RD copied from the request, RA set, CD copied, RCODE from the entry
+        out.putShort(start, request.id());
+        byte requestFlags = request.buffer.get(2);
+        out.put(start + 2, (byte) (0x80 | (requestFlags & 0x79)));
+        out.put(start + 3, (byte) (0x80 | (request.buffer.get(3) & 0x10) | (RCODE & 0x0F)));
+
+        //The client's question, so its exact letter case is echoed back
+        for (int i = 12; i < questionEnd; i++) {
+            out.put(start + i, request.buffer.get(i));
+        }
+
+        //Count the TTLs down by the time spent in the cache
+        int age = age();
+        for (int i = 0; i < ttlOffsets.length; i++) {
+            out.putInt(start + ttlOffsets[i], Math.max(0, ttls[i] - age));
+        }
+
+        //Answer an EDNS client with our own OPT record at the end of the additional section
+        int opt = DNSEdns.find(request);
+        if (opt >= 0) {
+            if (out.remaining() < DNSEdns.OPT_LENGTH) {
+                out.position(start);
+                return false;
+            }
+            DNSEdns.writeOpt(out, DNSEdns.dnssecOk(request, opt));
+            out.putShort(start + 10, (short) (out.getShort(start + 10) + 1));
+        }
+        return true;
+    }
+
+
+    //Copy of this entry to hand out after it has expired (RFC 8767), with every TTL set to ttl so clients come back
+    //soon. It isn't pre-encoded.
+    DNSCacheEntry asStale(int ttl) {
+        DNSCacheEntry stale = new DNSCacheEntry();
+        stale.creationTime = Instant.now();
+        stale.TTL = ttl;
+        stale.RCODE = RCODE;
+        for (DNSRecord dnsRecord : answers) {
+            stale.answers.add(dnsRecord.withTTL(ttl));
+        }
+        for (DNSRecord dnsRecord : authorityRecords) {
+            stale.authorityRecords.add(dnsRecord.withTTL(ttl));
+        }
+        for (DNSRecord dnsRecord : additionalRecords) {
+            stale.additionalRecords.add(dnsRecord.withTTL(ttl));
+        }
+        return stale;
+    }
+
+
+    //When this entry stops being valid, in epoch milliseconds
+    long expiresAt() {
+        return creationTime.toEpochMilli() + TTL * 1000L;
+    }
+
+    //Seconds the entry has been in the cache, used to count down the TTLs handed to clients
+    int age() {
+        return (int) (Instant.now().getEpochSecond() - creationTime.getEpochSecond());
+    }
+
+    //The three sections in wire order
+    List<ArrayList<DNSRecord>> sections() {
+        return List.of(answers, authorityRecords, additionalRecords);
+    }
+
+    //IDE generated toString method. Useful for debugging
+    @Override
+    public String toString() {
+        return "DNSCacheEntry{" +
+                "answers=" + answers +
+                ", authorityRecords=" + authorityRecords +
+                ", additionalRecords=" + additionalRecords +
+                ", creationTime=" + creationTime +
+                ", TTL=" + TTL +
+                ", RCODE=" + RCODE +
+                '}';
+    }
+
+}
@@ -0,0 +1,242 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+//Saves the cache to a file and loads it back, so a restarted server starts warm instead of sending every question
+//upstream at once. With dns.cache.snapshot set, the file is written every dns.cache.snapshot.interval seconds and when
+//the JVM shuts down, and read when the server starts. Reading happens in the background while the server is already
+//answering, so a big snapshot never delays startup; an entry that live traffic has cached by then is left alone.
+//The file is a header followed by one record per entry: when the entry was cached and its TTL (so its absolute
+//expiry, and the TTLs handed out after the restart count down from where they were), its RCODE, the offsets of the
+//TTLs, and the pre-encoded response, which holds the question too. It is written through memory-mapped chunks into
+//a temporary file that then replaces the old one, so a crash mid-write leaves the previous snapshot intact, and read
+//back by mapping it, so a large cache loads at the speed of copying bytes. Entries that have expired in the meantime
+//are skipped.
+public class DNSCacheSnapshot {
+
+    //"DNSC", and the format version
+    private static final int MAGIC = 0x444E5343;
+    private static final int VERSION = 1;
+
+    //Header: magic, version, when it was written (epoch milliseconds)
+    private static final int HEADER = 16;
+
+    //Each record: length, created (epoch milliseconds), TTL, RCODE, unused, question end, TTL count, response length,
+    //then the TTL offsets (a short each) and the response
+    private static final int RECORD_HEADER = 4 + 8 + 4 + 1 + 1 + 2 + 2 + 4;
+
+    //The file is written and read through mappings of up to this many bytes
+    private static final int CHUNK = 64 * 1024 * 1024;
+
+    //Background thread that loads and saves the snapshot
+    private static final ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "dns-cache-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+
+    //Load the snapshot in the background if there is one, then keep saving it while the server runs and once more at
+    //shutdown. The saves are queued behind the load on the same thread.
+    static void start(Path path) {
+        saver.execute(() -> {
+            long started = System.nanoTime();
+            try {
+                int loaded = load(path);
+                System.out.println("Loaded " + loaded + " cache entries from " + path + " in "
+                        + (System.nanoTime() - started) / 1_000_000 + " ms");
+            } catch (NoSuchFileException e) {
+                System.out.println("No cache snapshot at " + path + ", starting cold");
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Failed to load cache snapshot " + path + ": " + e.getMessage());
+            }
+        });
+
+        int interval = DNSConfig.CACHE_SNAPSHOT_INTERVAL;
+        saver.scheduleWithFixedDelay(() -> trySave(path), interval, interval, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> trySave(path), "dns-cache-snapshot-final"));
+    }
+
+    private static void trySave(Path path) {
+        try {
+            save(path);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Failed to save cache snapshot " + path + ": " + e.getMessage());
+        }
+    }
+
+
+    //Write every entry that is still worth having to the file. Returns how many were written.
+    static synchronized int save(Path path) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        long now = System.currentTimeMillis();
+        int[] written = {0};
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer writer = new Writer(channel);
+            ByteBuffer header = writer.reserve(HEADER);
+            header.putInt(MAGIC).putInt(VERSION).putLong(now);
+
+            DNSCache.forEach(entry -> {
+                if (entry.expiresAt() + DNSCache.STALE_MS <= now) {
+                    return;
+                }
+                ByteBuffer out = writer.reserve(RECORD_HEADER + 2 * entry.ttlOffsets.length + entry.wire.length);
+                out.putInt(RECORD_HEADER + 2 * entry.ttlOffsets.length + entry.wire.length);
+                out.putLong(entry.creationTime.toEpochMilli());
+                out.putInt(entry.TTL);
+                out.put(entry.RCODE);
+                out.put((byte) 0);
+                out.putShort((short) entry.questionEnd);
+                out.putShort((short) entry.ttlOffsets.length);
+                out.putInt(entry.wire.length);
+                for (int ttlOffset : entry.ttlOffsets) {
+                    out.putShort((short) ttlOffset);
+                }
+                out.put(entry.wire);
+                written[0]++;
+            });
+
+            //A zero length marks the end
+            writer.reserve(4).putInt(0);
+            writer.finish();
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return written[0];
+    }
+
+    //Put every entry in the file that hasn't expired into the cache. Returns how many were added. Synchronized with
+    //save(), so a shutdown during the load doesn't replace the file with the part loaded so far.
+    static synchronized int load(Path path) throws IOException {
+        long now = System.currentTimeMillis();
+        int loaded = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, CHUNK));
+            if (size < HEADER + 4 || in.getInt(0) != MAGIC || in.getInt(4) != VERSION) {
+                throw new IOException("Not a cache snapshot, or written by a different version");
+            }
+
+            long base = 0;             //File offset of the mapping
+            int position = HEADER;
+            while (true) {
+                //Move the mapping along when the next record isn't wholly inside it
+                if (position + 4 > in.limit() || position + in.getInt(position) > in.limit()) {
+                    base += position;
+                    if (base + 4 > size) {
+                        throw new IOException("Truncated cache snapshot");
+                    }
+                    in = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(size - base, CHUNK));
+                    position = 0;
+                }
+                int length = in.getInt(position);
+                if (length == 0) {
+                    break;
+                }
+                if (length < RECORD_HEADER || position + length > in.limit()) {
+                    throw new IOException("Truncated cache snapshot");
+                }
+                if (readEntry(in, position, now)) {
+                    loaded++;
+                }
+                position += length;
+            }
+        }
+        return loaded;
+    }
+
+    //Add the entry stored at position to the cache unless it has expired, or the question has been answered again
+    //since the server started
+    private static boolean readEntry(ByteBuffer in, int position, long now) throws IOException {
+        long created = in.getLong(position + 4);
+        int ttl = in.getInt(position + 12);
+        if (created + ttl * 1000L + DNSCache.STALE_MS <= now) {
+            return false;
+        }
+
+        DNSCacheEntry entry = new DNSCacheEntry();
+        entry.creationTime = Instant.ofEpochMilli(created);
+        entry.TTL = ttl;
+        entry.RCODE = in.get(position + 16);
+        entry.questionEnd = in.getShort(position + 18);
+        int[] ttlOffsets = new int[in.getShort(position + 20)];
+        byte[] wire = new byte[in.getInt(position + 22)];
+        int offset = position + RECORD_HEADER;
+        for (int i = 0; i < ttlOffsets.length; i++, offset += 2) {
+            ttlOffsets[i] = in.getShort(offset) & 0xFFFF;
+        }
+        in.get(offset, wire);
+
+        ByteBuffer response = ByteBuffer.wrap(wire);
+        int[] ttls = new int[ttlOffsets.length];
+        for (int i = 0; i < ttls.length; i++) {
+            ttls[i] = response.getInt(ttlOffsets[i]);
+        }
+
+        //The off-heap store only needs the bytes. The heap store answers misses from the decoded records, and only keeps
+        //the encoded response if configured to.
+        DNSQuestion dnsQuestion = DNSMessageView.wrap(wire, wire.length).question(0);
+        if (DNSCache.getEncoded(dnsQuestion) != null) {
+            return false;
+        }
+        if (!DNSConfig.CACHE_OFF_HEAP) {
+            DNSMessage message = DNSMessage.decodeMessage(wire);
+            entry.answers.addAll(message.dnsAnswers);
+            entry.authorityRecords.addAll(message.dnsAuthorityRecords);
+            entry.additionalRecords.addAll(message.dnsAdditionalRecords);
+        }
+        if (DNSConfig.CACHE_OFF_HEAP || DNSConfig.CACHE_PREENCODED) {
+            entry.wire = wire;
+            entry.ttlOffsets = ttlOffsets;
+            entry.ttls = ttls;
+        }
+        return DNSCache.addEntry(dnsQuestion, entry);
+    }
+
+
+    //Hands out room in the file a piece at a time, mapping a new chunk whenever the current one is full
+    private static final class Writer {
+        private final FileChannel channel;
+        private MappedByteBuffer chunk;
+        private long chunkStart;
+
+        Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        //A buffer positioned where the next length bytes go
+        ByteBuffer reserve(int length) {
+            if (chunk == null || chunk.remaining() < length) {
+                long start = 0;
+                if (chunk != null) {
+                    chunk.force();
+                    start = chunkStart + chunk.position();
+                }
+                try {
+                    chunk = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.max(CHUNK, length));
+                } catch (IOException e) {
+                    throw new IllegalStateException(e.getMessage(), e);
+                }
+                chunkStart = start;
+            }
+            return chunk;
+        }
+
+        //Flush what was written and cut the file back to it
+        void finish() throws IOException {
+            chunk.force();
+            channel.truncate(chunkStart + chunk.position());
+        }
+    }
+
+}
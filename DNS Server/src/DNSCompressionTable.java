@@ -0,0 +1,140 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+//Remembers where each domain name suffix has already been written in the message being encoded, so later names can
+//point back to it (RFC 1035 section 4.1.4). Every suffix is recorded, not just whole names, so "mail.example.com"
+//written after "www.example.com" becomes "mail" plus a pointer to "example.com".
+//It is a small open addressing table of primitive ints, reset between messages by bumping a generation counter, so
+//one table per thread can encode any number of messages without producing garbage.
+public class DNSCompressionTable {
+
+    //Number of slots (a power of two). Messages with more suffixes than fit simply compress less.
+    private static final int SLOTS = 256;
+    private static final int MASK = SLOTS - 1;
+    private static final int MAX_FILL = SLOTS * 3 / 4;
+
+    //Largest offset a compression pointer can hold (14 bits)
+    private static final int MAX_POINTER = 0x3FFF;
+
+    //Longest possible name is 127 labels
+    private static final int MAX_LABELS = 128;
+
+    //Member Variables
+    private final int[] hashes = new int[SLOTS];
+    private final int[] offsets = new int[SLOTS];      //Offset of the suffix from the start of the message
+    private final int[] stamps = new int[SLOTS];       //Slot is in use when its stamp equals the generation
+    private int generation = 0;
+    private int used;
+    private int base;                                  //Buffer index of the first byte of the message
+
+    private final int[] suffixHashes = new int[MAX_LABELS + 1];
+
+
+    //Start a new message whose first byte is at index base of the output buffer
+    void reset(int base) {
+        this.base = base;
+        used = 0;
+        if (++generation == 0) {
+            Arrays.fill(stamps, 0);
+            generation = 1;
+        }
+    }
+
+
+    //Write a name at the current position of out, replacing the longest suffix already in the message with a pointer
+    void writeName(ByteBuffer out, DomainName name) {
+        int count = name.labelCount();
+
+        //Hash every suffix, shortest first, so each one costs one label's worth of work
+        suffixHashes[count] = 0;
+        for (int i = count - 1; i >= 0; i--) {
+            suffixHashes[i] = suffixHashes[i + 1] * 0x9E3779B1 + labelHash(name, i);
+        }
+
+        for (int i = 0; i < count; i++) {
+            //If this suffix is already in the message, point at it and the name is done
+            int found = find(out, name, i);
+            if (found >= 0) {
+                out.putShort((short) (0xC000 | found));
+                return;
+            }
+
+            //Otherwise remember where it starts and write its first label
+            insert(suffixHashes[i], out.position() - base);
+            int offset = name.labelOffset(i);
+            for (int b = 0; b <= name.labelLength(i); b++) {
+                out.put(name.byteAt(offset + b));
+            }
+        }
+
+        //Write the 0 terminating character
+        out.put((byte) 0);
+    }
+
+
+    //Offset of an earlier copy of the suffix starting at label first, or -1
+    private int find(ByteBuffer out, DomainName name, int first) {
+        int hash = suffixHashes[first];
+        for (int slot = hash & MASK; stamps[slot] == generation; slot = (slot + 1) & MASK) {
+            if (hashes[slot] == hash && matches(out, offsets[slot], name, first)) {
+                return offsets[slot];
+            }
+        }
+        return -1;
+    }
+
+    //Remember a suffix, unless the table is getting full or the offset is too big to point to
+    private void insert(int hash, int offset) {
+        if (used >= MAX_FILL || offset > MAX_POINTER) {
+            return;
+        }
+        int slot = hash & MASK;
+        while (stamps[slot] == generation) {
+            slot = (slot + 1) & MASK;
+        }
+        stamps[slot] = generation;
+        hashes[slot] = hash;
+        offsets[slot] = offset;
+        used++;
+    }
+
+    //Check the bytes already written at offset spell out exactly labels first..end, following pointers
+    private boolean matches(ByteBuffer out, int offset, DomainName name, int first) {
+        int position = base + offset;
+        for (int i = first; i < name.labelCount(); i++) {
+            int length = out.get(position) & 0xFF;
+            while ((length & 0xC0) == 0xC0) {
+                position = base + (((length & 0x3F) << 8) | (out.get(position + 1) & 0xFF));
+                length = out.get(position) & 0xFF;
+            }
+            if (length != name.labelLength(i)) {
+                return false;
+            }
+            int labelOffset = name.labelOffset(i);
+            for (int c = 1; c <= length; c++) {
+                if (out.get(position + c) != name.byteAt(labelOffset + c)) {
+                    return false;
+                }
+            }
+            position += length + 1;
+        }
+        int end = out.get(position) & 0xFF;
+        while ((end & 0xC0) == 0xC0) {
+            position = base + (((end & 0x3F) << 8) | (out.get(position + 1) & 0xFF));
+            end = out.get(position) & 0xFF;
+        }
+        return end == 0;
+    }
+
+    //Hash of one label's bytes
+    private static int labelHash(DomainName name, int i) {
+        int offset = name.labelOffset(i);
+        int length = name.labelLength(i);
+        int hash = length;
+        for (int c = 1; c <= length; c++) {
+            hash = 31 * hash + (name.byteAt(offset + c) & 0xFF);
+        }
+        return hash;
+    }
+
+}
@@ -0,0 +1,123 @@
+//Settings for the server. Every value has a sensible default and can be overridden on the command line with a
+//system property, for example: java -Ddns.workers=16 -Ddns.port=5353 Main
+public class DNSConfig {
+
+    //Port the server listens on for client requests
+    static final int LISTEN_PORT = Integer.getInteger("dns.port", 8053);
+
+    //Number of UDP sockets bound to the listening port with SO_REUSEPORT, each read by its own thread. The kernel
+    //spreads clients across them, so one socket's receive queue stops being the bottleneck on a many-core machine.
+    static final int LISTENERS = Integer.getInteger("dns.listeners", 1);
+
+    //Most datagrams a listener reads per wakeup before answering them and sending the replies together
+    static final int IO_BATCH = Math.max(1, Integer.getInteger("dns.io.batch", 64));
+
+    //Serve DNS over TCP on the listening port as well (RFC 7766)
+    static final boolean TCP_ENABLED = Boolean.parseBoolean(System.getProperty("dns.tcp", "true"));
+
+    //Most TCP connections open at once, how long (milliseconds) a quiet one is kept, and how many queries one
+    //connection may have in flight before the server stops reading from it
+    static final int TCP_MAX_CONNECTIONS = Integer.getInteger("dns.tcp.connections", 1000);
+    static final int TCP_IDLE_MS = Integer.getInteger("dns.tcp.idle", 10_000);
+    static final int TCP_PIPELINE = Math.max(1, Integer.getInteger("dns.tcp.pipeline", 100));
+
+    //Number of worker threads that decode, resolve and reply to requests in parallel
+    static final int WORKER_THREADS = Integer.getInteger("dns.workers", Runtime.getRuntime().availableProcessors());
+
+    //Overload protection (see DNSServer.receive): most requests waiting for a worker before new ones are dropped, how
+    //long (milliseconds) one may wait before it is dropped unanswered because the client will have retried by then,
+    //and the number waiting beyond which only questions the cache can answer are handled and misses are dropped.
+    //The worker queue holds twice WORKER_QUEUE; the other half is for upstream replies to requests already taken on.
+    static final int WORKER_QUEUE = Math.max(1, Integer.getInteger("dns.workers.queue", 4096));
+    static final int WORKER_DEADLINE_MS = Integer.getInteger("dns.workers.deadline", 1000);
+    static final int WORKER_MISS_LIMIT = Integer.getInteger("dns.workers.queue.misses", WORKER_QUEUE / 2);
+
+    //Upstream resolvers that cache misses are forwarded to: a comma separated list of "host" or "host:port", where
+    //a bare host uses dns.upstream.port. Each query goes to the fastest one that is answering.
+    static final String UPSTREAM_HOSTS = System.getProperty("dns.upstream", "8.8.8.8");
+    static final int UPSTREAM_PORT = Integer.getInteger("dns.upstream.port", 53);
+
+    //Also ask a second upstream when the first is slower than usual to answer. "Usual" is its smoothed RTT plus
+    //HEDGE_FACTOR times the RTT variation, so a higher factor hedges less often.
+    static final boolean HEDGE_ENABLED = Boolean.parseBoolean(System.getProperty("dns.upstream.hedge", "true"));
+    static final double HEDGE_FACTOR = Double.parseDouble(System.getProperty("dns.upstream.hedge.factor", "2"));
+
+    //How long (milliseconds) to wait for each attempt at the upstream resolver
+    static final int UPSTREAM_TIMEOUT_MS = Integer.getInteger("dns.upstream.timeout", 2000);
+
+    //How many times an unanswered upstream query is resent before the client gets a failure
+    static final int UPSTREAM_RETRIES = Integer.getInteger("dns.upstream.retries", 2);
+
+    //Send every upstream query over pooled TCP connections (dns.upstream.transport=tcp) instead of UDP. Either way, a
+    //UDP reply that comes back truncated is asked again over TCP.
+    static final boolean UPSTREAM_TCP = System.getProperty("dns.upstream.transport", "udp").equalsIgnoreCase("tcp");
+
+    //Number of TCP connections kept open to the upstream resolver
+    static final int UPSTREAM_TCP_CONNECTIONS = Math.max(1, Integer.getInteger("dns.upstream.tcp.connections", 2));
+
+    //Most entries the cache will hold, and a rough cap on the memory they may use
+    static final int CACHE_MAX_ENTRIES = Integer.getInteger("dns.cache.entries", 100_000);
+    static final long CACHE_MAX_BYTES = Long.getLong("dns.cache.bytes", 64L * 1024 * 1024);
+
+    //Refresh an entry in the background when it is hit in the last CACHE_PREFETCH_PERCENT of its TTL, if it has had at
+    //least CACHE_PREFETCH_HITS hits since it was cached
+    static final boolean CACHE_PREFETCH = Boolean.parseBoolean(System.getProperty("dns.cache.prefetch", "true"));
+    static final int CACHE_PREFETCH_PERCENT = Integer.getInteger("dns.cache.prefetch.percent", 10);
+    static final int CACHE_PREFETCH_HITS = Integer.getInteger("dns.cache.prefetch.hits", 3);
+
+    //Where cache entries are kept: "heap" (objects) or "offheap" (flat records in direct memory, see DNSOffHeapCache),
+    //and the size of each off-heap slab in bytes
+    static final boolean CACHE_OFF_HEAP = System.getProperty("dns.cache.store", "heap").equalsIgnoreCase("offheap");
+    static final int CACHE_SLAB_BYTES = Integer.getInteger("dns.cache.slab", 1024 * 1024);
+
+    //File the cache is saved to every CACHE_SNAPSHOT_INTERVAL seconds and at shutdown, and loaded from at startup, so
+    //a restart doesn't begin with an empty cache. Empty (the default) turns snapshots off.
+    static final String CACHE_SNAPSHOT = System.getProperty("dns.cache.snapshot", "");
+    static final int CACHE_SNAPSHOT_INTERVAL = Math.max(1, Integer.getInteger("dns.cache.snapshot.interval", 60));
+
+    //Longest a negative answer (NXDOMAIN or NODATA) is cached, in seconds, whatever its SOA says
+    static final int CACHE_NEGATIVE_MAX = Integer.getInteger("dns.cache.negative.max", 3600);
+
+    //Serve-stale (RFC 8767): keep expired entries this many more seconds (0 turns it off), and answer from them with
+    //a TTL of CACHE_STALE_TTL seconds when upstream fails or hasn't answered within CACHE_STALE_BUDGET_MS
+    static final int CACHE_STALE_SECONDS = Integer.getInteger("dns.cache.stale", 0);
+    static final int CACHE_STALE_TTL = Integer.getInteger("dns.cache.stale.ttl", 30);
+    static final int CACHE_STALE_BUDGET_MS = Integer.getInteger("dns.cache.stale.budget", 1800);
+
+    //File every answer is logged to (see DNSQueryLog); empty turns the log off. Entries are buffered in a ring of
+    //QUERY_LOG_BUFFER slots, and the file is rotated at QUERY_LOG_MAX_BYTES, keeping QUERY_LOG_FILES files.
+    static final String QUERY_LOG = System.getProperty("dns.querylog", "");
+    static final int QUERY_LOG_BUFFER = Integer.getInteger("dns.querylog.buffer", 65536);
+    static final long QUERY_LOG_MAX_BYTES = Long.getLong("dns.querylog.max", 64L * 1024 * 1024);
+    static final int QUERY_LOG_FILES = Integer.getInteger("dns.querylog.files", 5);
+
+    //Response rate limiting (see DNSRateLimiter): UDP answers per second allowed for each client prefix and question,
+    //with bursts of up to RRL_BURST; 0 (the default) turns it off. Every RRL_SLIP-th query over the limit gets an empty
+    //truncated reply so a real client retries over TCP, the rest are dropped (0 drops them all). Clients are grouped
+    //by their first RRL_IPV4_PREFIX or RRL_IPV6_PREFIX bits, and RRL_ENTRIES buckets are kept at most.
+    static final int RRL_RATE = Integer.getInteger("dns.rrl.rate", 0);
+    static final int RRL_BURST = Integer.getInteger("dns.rrl.burst", Math.max(1, RRL_RATE));
+    static final int RRL_SLIP = Integer.getInteger("dns.rrl.slip", 2);
+    static final int RRL_ENTRIES = Integer.getInteger("dns.rrl.entries", 65536);
+    static final int RRL_IPV4_PREFIX = Integer.getInteger("dns.rrl.ipv4.prefix", 24);
+    static final int RRL_IPV6_PREFIX = Integer.getInteger("dns.rrl.ipv6.prefix", 56);
+
+    //Print a line for every answer added to (or turned away by) the cache. Handy when debugging, but every print takes
+    //the stdout lock.
+    static final boolean LOG_CACHE_INSERTS = Boolean.parseBoolean(System.getProperty("dns.log.inserts", "true"));
+
+    //Port on 127.0.0.1 that serves the metrics as text (see DNSMetrics). Off (0) unless set, so nothing listens that
+    //wasn't asked for; a Prometheus scraper on the same host can use e.g. -Ddns.metrics.port=9153.
+    static final int METRICS_PORT = Integer.getInteger("dns.metrics.port", 0);
+
+    //Keep each cached answer pre-encoded so cache hits are served by patching bytes instead of re-encoding
+    static final boolean CACHE_PREENCODED = Boolean.parseBoolean(System.getProperty("dns.cache.preencoded", "true"));
+
+    //512 is max size of a plain UDP DNS packet
+    static final int MAX_UDP_SIZE = 512;
+
+    //UDP payload size we advertise with EDNS(0) and the most we send to a client that advertises more. 1232 fits in
+    //one unfragmented packet on almost any path.
+    static final int EDNS_PAYLOAD_SIZE = Math.max(MAX_UDP_SIZE, Math.min(65535, Integer.getInteger("dns.edns.payload", 1232)));
+
+}
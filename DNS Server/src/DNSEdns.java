@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+
+//EDNS(0) (RFC 6891). A client that sends an OPT pseudo-record (type 41) in its additional section is telling us how
+//big a UDP reply it can take, in the record's CLASS field; clients that don't send one only get 512 bytes. Replies to
+//EDNS clients carry our own OPT record advertising dns.edns.payload, and a reply that is bigger than the client can
+//take over UDP is cut down to the header and question with TC set, so the client asks again over TCP.
+//The OPT record's TTL field holds the upper bits of the RCODE, the EDNS version and the DO (DNSSEC OK) flag.
+public class DNSEdns {
+
+    //TYPE of the OPT pseudo-record
+    static final short TYPE_OPT = 41;
+
+    //Extended RCODE for a request using an EDNS version we don't speak
+    static final int BADVERS = 16;
+
+    //DO flag inside the OPT record's TTL
+    private static final int DO_FLAG = 0x8000;
+
+    //Size of an OPT record with no options: root name, TYPE, CLASS, TTL, RDLENGTH
+    static final int OPT_LENGTH = 11;
+
+
+    //Index of the OPT record among a message's records, or -1 if it has none
+    static int find(DNSMessageView view) throws IOException {
+        int first = view.answerCount() + view.authorityCount();
+        for (int i = first; i < view.recordCount(); i++) {
+            if (view.recordType(i) == TYPE_OPT) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //The OPT record in a list of additional records, or null
+    static DNSRecord find(ArrayList<DNSRecord> additionalRecords) {
+        for (DNSRecord dnsRecord : additionalRecords) {
+            if (dnsRecord.TYPE == TYPE_OPT) {
+                return dnsRecord;
+            }
+        }
+        return null;
+    }
+
+    //Biggest UDP reply the sender of a request can take: 512 without EDNS, otherwise its advertised size, but never
+    //more than we advertise ourselves
+    static int replyLimit(DNSMessageView view) throws IOException {
+        int opt = find(view);
+        if (opt < 0) {
+            return DNSConfig.MAX_UDP_SIZE;
+        }
+        int payload = view.buffer.getShort(view.recordFieldsOffset(opt) + 2) & 0xFFFF;
+        return clamp(payload);
+    }
+
+    static int replyLimit(DNSMessage request) {
+        DNSRecord opt = find(request.dnsAdditionalRecords);
+        return opt == null ? DNSConfig.MAX_UDP_SIZE : clamp(opt.CLASS & 0xFFFF);
+    }
+
+    private static int clamp(int payload) {
+        return Math.max(DNSConfig.MAX_UDP_SIZE, Math.min(payload, DNSConfig.EDNS_PAYLOAD_SIZE));
+    }
+
+    //EDNS version the request's OPT record asks for (0 if it has none)
+    static int version(DNSMessageView view) throws IOException {
+        int opt = find(view);
+        return opt < 0 ? 0 : view.buffer.get(view.recordFieldsOffset(opt) + 5) & 0xFF;
+    }
+
+    //True when the OPT record at index opt has the DO flag set
+    static boolean dnssecOk(DNSMessageView view, int opt) throws IOException {
+        return (view.buffer.getInt(view.recordFieldsOffset(opt) + 4) & DO_FLAG) != 0;
+    }
+
+
+    //Our OPT record for a reply to a request carrying requestOpt. The DO flag is copied from the request (RFC 3225)
+    //and the upper 8 bits of the extended RCODE go in the top byte of the TTL.
+    static DNSRecord responseOpt(DNSRecord requestOpt, int extendedRcode) {
+        return opt((requestOpt.TTL & DO_FLAG) | ((extendedRcode >> 4) << 24));
+    }
+
+    //OPT record for our own queries to the upstream resolver
+    static DNSRecord queryOpt() {
+        return opt(0);
+    }
+
+    private static DNSRecord opt(int ttl) {
+        DNSRecord dnsRecord = new DNSRecord();
+        dnsRecord.creationTime = Instant.now();
+        dnsRecord.NAME = DomainName.ROOT;
+        dnsRecord.TYPE = TYPE_OPT;
+        dnsRecord.CLASS = (short) DNSConfig.EDNS_PAYLOAD_SIZE;
+        dnsRecord.TTL = ttl;
+        dnsRecord.RDLENGTH = 0;
+        dnsRecord.RDATA = new byte[0];
+        return dnsRecord;
+    }
+
+    //Write an OPT record with no options at the current position of the buffer
+    static void writeOpt(ByteBuffer out, boolean dnssecOk) {
+        out.put((byte) 0);
+        out.putShort(TYPE_OPT);
+        out.putShort((short) DNSConfig.EDNS_PAYLOAD_SIZE);
+        out.putInt(dnssecOk ? DO_FLAG : 0);
+        out.putShort((short) 0);
+    }
+
+
+    //If the message written to out since start is bigger than limit, cut it back to the header, the question and the
+    //OPT record (if it has one) and set TC, so the client knows to ask again over TCP
+    static void truncate(ByteBuffer out, int start, int limit) throws IOException {
+        if (out.position() - start <= limit) {
+            return;
+        }
+        ByteBuffer message = out.duplicate().position(start).limit(out.position()).slice();
+        DNSMessageView view = DNSMessageView.wrap(message);
+        int opt = find(view);
+        boolean dnssecOk = opt >= 0 && dnssecOk(view, opt);
+
+        out.position(start + view.questionEnd());
+        if (opt >= 0) {
+            writeOpt(out, dnssecOk);
+        }
+        out.put(start + 2, (byte) (out.get(start + 2) | 0x02));
+        out.putShort(start + 6, (short) 0);
+        out.putShort(start + 8, (short) 0);
+        out.putShort(start + 10, (short) (opt >= 0 ? 1 : 0));
+    }
+
+}
@@ -0,0 +1,298 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+
+//Sends cache misses to the upstream resolvers without blocking the caller. Every outgoing query gets a fresh
+//transaction ID so queries from different clients (which may reuse the same ID) can't be confused, and is tracked in
+//a pending table until the matching reply arrives. Replies are matched on ID and question, then given back their
+//original ID. A single selector thread reads replies and handles timeouts and retries, so hundreds of lookups can be
+//outstanding at once.
+//Each query goes to the fastest healthy upstream (see DNSUpstream), and a retry after a timeout goes to a different
+//one if there is one. With hedging on, a query the first upstream hasn't answered within its usual time (its smoothed
+//RTT plus dns.upstream.hedge.factor times the variation) is also sent to the next fastest, and whichever answers
+//first wins. That trims the slow tail without doubling the upstream traffic.
+//A reply that comes back truncated (TC set, or big enough to fill the receive buffer) is asked again over TCP through
+//that upstream's pooled connections, and with dns.upstream.transport=tcp every query goes that way from the start.
+public class DNSForwarder implements Runnable {
+
+    //One query waiting for its upstream reply
+    private static class PendingQuery {
+        byte[] query;                   //The query as sent upstream (with our ID)
+        DNSMessageView queryView;       //View over the query, for matching the question section
+        short originalID;               //The client's ID, restored on the reply
+        volatile long deadline;         //When to give up on the current attempt (System.nanoTime)
+        int attemptsLeft;               //How many more times to resend before failing
+        volatile DNSUpstream upstream;  //Where the current attempt went, and when
+        volatile long sentAt;
+        volatile DNSUpstream hedge;     //Second upstream asked during the current attempt, and when
+        volatile long hedgeSentAt;
+        volatile long hedgeAt;          //When to ask a second upstream (System.nanoTime), or 0 for never
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+    }
+
+    //Random IDs tried for a new query before sweeping for a free one
+    private static final int RANDOM_ID_TRIES = 16;
+
+    //Member Variables
+    private final DNSUpstream[] upstreams;
+    private final Selector selector;
+    private final ConcurrentHashMap<Short, PendingQuery> pending = new ConcurrentHashMap<>();
+    private final long timeoutNanos = DNSConfig.UPSTREAM_TIMEOUT_MS * 1_000_000L;
+    private volatile boolean running = true;
+
+
+    //Constructor, opens a channel to each upstream and starts the selector thread
+    DNSForwarder(List<InetSocketAddress> addresses) throws IOException {
+        if (addresses.isEmpty()) {
+            throw new IOException("No upstream resolvers configured");
+        }
+        selector = Selector.open();
+        upstreams = new DNSUpstream[addresses.size()];
+        for (int i = 0; i < upstreams.length; i++) {
+            upstreams[i] = new DNSUpstream(addresses.get(i));
+            upstreams[i].channel.register(selector, SelectionKey.OP_READ, upstreams[i]);
+        }
+
+        Thread thread = new Thread(this, "dns-forwarder");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    //Send a query upstream. The future completes with the reply bytes (carrying the original ID), or fails with a
+    //TimeoutException once every retry has gone unanswered.
+    CompletableFuture<byte[]> forward(byte[] query) {
+        if (DNSConfig.UPSTREAM_TCP) {
+            return forwardOverTcp(query, DNSUpstream.choose(upstreams, null));
+        }
+
+        PendingQuery pendingQuery = new PendingQuery();
+        pendingQuery.query = query.clone();
+        pendingQuery.queryView = DNSMessageView.wrap(pendingQuery.query, pendingQuery.query.length);
+        pendingQuery.originalID = pendingQuery.queryView.id();
+        pendingQuery.attemptsLeft = DNSConfig.UPSTREAM_RETRIES;
+        pendingQuery.deadline = System.nanoTime() + timeoutNanos;
+
+        //Pick an ID nobody else is waiting on: a few random tries, then a sweep through every ID. If all 65536 are in
+        //use the query fails, and the client gets a server failure, instead of spinning until one frees up.
+        short id = (short) ThreadLocalRandom.current().nextInt(0x10000);
+        for (int tries = 0; pending.putIfAbsent(id, pendingQuery) != null; tries++) {
+            if (tries == RANDOM_ID_TRIES + 0x10000) {
+                return CompletableFuture.failedFuture(new IOException("No free query ID, " + pending.size() + " queries in flight"));
+            }
+            id = tries < RANDOM_ID_TRIES ? (short) ThreadLocalRandom.current().nextInt(0x10000) : (short) (id + 1);
+        }
+        pendingQuery.queryView.setId(id);
+
+        send(pendingQuery, DNSUpstream.choose(upstreams, null));
+        return pendingQuery.future;
+    }
+
+
+    //Selector loop: read replies as they arrive, send hedges, and expire queries that took too long
+    @Override
+    public void run() {
+        //Big enough for any datagram, in case an upstream sends more than the EDNS size our queries advertise
+        ByteBuffer buffer = ByteBuffer.allocateDirect(65535);
+        while (running) {
+            try {
+                selector.select(10);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    DNSUpstream upstream = (DNSUpstream) key.attachment();
+
+                    //Drain every reply that is waiting
+                    while (true) {
+                        buffer.clear();
+                        try {
+                            if (upstream.channel.receive(buffer) == null) {
+                                break;
+                            }
+                        } catch (PortUnreachableException e) {
+                            //Nothing is listening there; the queries sent to it will time out and go elsewhere
+                            upstream.recordFailure();
+                            break;
+                        }
+                        //The channel silently drops whatever doesn't fit, so a full buffer means the reply was cut short
+                        boolean full = !buffer.hasRemaining();
+                        buffer.flip();
+                        byte[] reply = new byte[buffer.remaining()];
+                        buffer.get(reply);
+                        complete(reply, full, upstream);
+                    }
+                }
+                checkTimeouts();
+            } catch (IOException e) {
+                System.out.println("Forwarder error: " + e.getMessage());
+            }
+        }
+    }
+
+
+    //Stop the selector thread and fail anything still waiting
+    void close() throws IOException {
+        running = false;
+        selector.close();
+        for (DNSUpstream upstream : upstreams) {
+            upstream.close();
+        }
+        for (PendingQuery pendingQuery : pending.values()) {
+            pendingQuery.future.completeExceptionally(new IOException("Forwarder closed"));
+        }
+        pending.clear();
+    }
+
+    //The upstreams and their statistics
+    DNSUpstream[] upstreams() {
+        return upstreams;
+    }
+
+
+    //Hand a reply to the query it belongs to. Replies with an unknown ID or a different question are dropped, and
+    //truncated ones are asked again over TCP.
+    private void complete(byte[] reply, boolean full, DNSUpstream from) {
+        if (reply.length < 12) {
+            return;
+        }
+        long now = System.nanoTime();
+        DNSMessageView replyView = DNSMessageView.wrap(reply, reply.length);
+        short id = replyView.id();
+        PendingQuery pendingQuery = pending.get(id);
+        try {
+            if (pendingQuery == null || !replyView.sameQuestions(pendingQuery.queryView)) {
+                return;
+            }
+        } catch (IOException e) {
+            //Malformed reply, drop it and let the retry timer deal with it
+            return;
+        }
+        if (!pending.remove(id, pendingQuery)) {
+            return;
+        }
+
+        //Time the answer against whichever send it was for
+        if (from == pendingQuery.upstream) {
+            from.recordAnswer(now - pendingQuery.sentAt);
+        } else if (from == pendingQuery.hedge) {
+            from.recordAnswer(now - pendingQuery.hedgeSentAt);
+        } else {
+            from.recordAnswer(0);
+        }
+
+        if (replyView.isTruncated() || full) {
+            DNSMetrics.upstreamTcpFallbacks.increment();
+            pendingQuery.queryView.setId(pendingQuery.originalID);
+            forwardOverTcp(pendingQuery.query, from).whenComplete((tcpReply, error) -> {
+                if (error != null) {
+                    pendingQuery.future.completeExceptionally(error);
+                } else {
+                    pendingQuery.future.complete(tcpReply);
+                }
+            });
+            return;
+        }
+        replyView.setId(pendingQuery.originalID);
+        pendingQuery.future.complete(reply);
+    }
+
+    //Send a query over an upstream's TCP pool, keeping its statistics up to date
+    private static CompletableFuture<byte[]> forwardOverTcp(byte[] query, DNSUpstream upstream) {
+        long start = System.nanoTime();
+        return upstream.tcp.query(query).whenComplete((reply, error) -> {
+            if (error != null) {
+                upstream.recordFailure();
+            } else {
+                upstream.recordAnswer(System.nanoTime() - start);
+            }
+        });
+    }
+
+
+    //Send hedges that are due, resend queries whose attempt timed out, and fail the ones that are out of retries
+    private void checkTimeouts() {
+        long now = System.nanoTime();
+        for (PendingQuery pendingQuery : pending.values()) {
+            if (now - pendingQuery.deadline < 0) {
+                long hedgeAt = pendingQuery.hedgeAt;
+                if (hedgeAt != 0 && now - hedgeAt >= 0) {
+                    hedge(pendingQuery, now);
+                }
+                continue;
+            }
+
+            //Nobody answered this attempt
+            DNSUpstream upstream = pendingQuery.upstream;
+            if (upstream == null) {
+                //forward() hasn't sent it yet
+                continue;
+            }
+            DNSMetrics.upstreamTimeouts.increment();
+            upstream.recordFailure();
+            if (pendingQuery.hedge != null) {
+                pendingQuery.hedge.recordFailure();
+            }
+            if (pendingQuery.attemptsLeft > 0) {
+                pendingQuery.attemptsLeft--;
+                send(pendingQuery, DNSUpstream.choose(upstreams, upstream));
+            } else if (pending.remove(pendingQuery.queryView.id(), pendingQuery)) {
+                pendingQuery.future.completeExceptionally(new TimeoutException("No answer from " + upstream.address));
+            }
+        }
+    }
+
+    //Ask the next fastest healthy upstream as well, if there is one
+    private void hedge(PendingQuery pendingQuery, long now) {
+        pendingQuery.hedgeAt = 0;
+        DNSUpstream second = DNSUpstream.fastest(upstreams, pendingQuery.upstream);
+        if (second == null) {
+            return;
+        }
+        pendingQuery.hedge = second;
+        pendingQuery.hedgeSentAt = now;
+        write(second, pendingQuery);
+    }
+
+
+    //Put one attempt on the wire, and plan a hedge if it's on and we know the upstream's usual answer time
+    private void send(PendingQuery pendingQuery, DNSUpstream upstream) {
+        long now = System.nanoTime();
+        long hedgeDelay = DNSConfig.HEDGE_ENABLED && upstreams.length > 1 ? upstream.hedgeDelayNanos() : 0;
+        pendingQuery.sentAt = now;
+        pendingQuery.hedge = null;
+        pendingQuery.hedgeAt = hedgeDelay > 0 && hedgeDelay < timeoutNanos ? now + hedgeDelay : 0;
+        pendingQuery.deadline = now + timeoutNanos;
+        pendingQuery.upstream = upstream;
+        write(upstream, pendingQuery);
+    }
+
+    //If the socket buffer is full the packet is simply lost and the retry timer resends it
+    private static void write(DNSUpstream upstream, PendingQuery pendingQuery) {
+        try {
+            upstream.channel.write(ByteBuffer.wrap(pendingQuery.query));
+        } catch (IOException e) {
+            System.out.println("Failed to send to " + upstream.address + ": " + e.getMessage());
+        }
+    }
+
+
+    //IDE generated toString method. Useful for debugging
+    @Override
+    public String toString() {
+        return "DNSForwarder{" +
+                "upstreams=" + List.of(upstreams) +
+                ", pending=" + pending.size() +
+                '}';
+    }
+
+}
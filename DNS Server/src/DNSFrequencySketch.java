@@ -0,0 +1,83 @@
+//A count-min sketch of how often each cache key has been seen recently, used by DNSCache to decide whether a new
+//entry is worth evicting an old one for (the TinyLFU admission policy). Each key gets four 4-bit counters spread over
+//a long[] table, and every counter is halved once enough increments have happened, so old popularity fades away.
+//Not thread safe; DNSCache only touches it while holding its lock.
+public class DNSFrequencySketch {
+
+    //Multipliers used to pick a different counter for each of the four rows
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    //Mask that clears the high bit of every 4-bit counter after a shift, used when halving
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    //Member Variables
+    private final long[] table;     //16 counters of 4 bits per long
+    private final int tableMask;
+    private final int sampleSize;   //Increments between agings
+    private int additions;
+
+
+    //Constructor, sized for roughly the number of entries the cache will hold
+    DNSFrequencySketch(int expectedEntries) {
+        int size = Integer.highestOneBit(Math.max(16, expectedEntries - 1)) << 1;
+        table = new long[size];
+        tableMask = size - 1;
+        sampleSize = 10 * Math.max(16, expectedEntries);
+    }
+
+
+    //Record one more sighting of a key
+    void increment(int hashCode) {
+        boolean added = false;
+        for (int row = 0; row < 4; row++) {
+            added |= incrementAt(indexOf(hashCode, row), offsetOf(hashCode, row));
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+
+    //Estimated number of recent sightings of a key (0 to 15)
+    int frequency(int hashCode) {
+        int frequency = Integer.MAX_VALUE;
+        for (int row = 0; row < 4; row++) {
+            long count = (table[indexOf(hashCode, row)] >>> offsetOf(hashCode, row)) & 0xFL;
+            frequency = Math.min(frequency, (int) count);
+        }
+        return frequency;
+    }
+
+
+    //Bump one counter unless it is already saturated
+    private boolean incrementAt(int index, int offset) {
+        long mask = 0xFL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    //Halve every counter so the sketch favours recent popularity
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    //Which long holds this row's counter for the key
+    private int indexOf(int hashCode, int row) {
+        long hash = (hashCode + SEEDS[row]) * SEEDS[row];
+        hash += hash >>> 32;
+        return (int) hash & tableMask;
+    }
+
+    //Which of the 16 counters inside that long belongs to this row
+    private int offsetOf(int hashCode, int row) {
+        int spread = hashCode * 0x9E3779B9;
+        return (((spread >>> (row << 3)) & 3) << 2) + (row << 4) & 63;
+    }
+
+}
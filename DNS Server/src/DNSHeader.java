@@ -1,6 +1,4 @@
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 //This class should store all the data provided by the 12 byte DNS header. See the spec for all the fields needed.
 public class DNSHeader {
@@ -28,81 +26,68 @@ public class DNSHeader {
     short ARCOUNT;  //Number of resource records in the additional records section.
 
 
-    //Read the header from an input stream
-    static DNSHeader decodeHeader(InputStream inputStream) throws IOException {
+    //Read the header from the first 12 bytes of a buffer, in place
+    static DNSHeader decodeHeader(ByteBuffer buffer) {
 
         //New instance of DNSHeader
         DNSHeader dnsHeader = new DNSHeader();
 
-        //Temp byte array
-        byte[] bytes;
-
         //Get ID
-        bytes = inputStream.readNBytes(2);
-        dnsHeader.ID = (short)((bytes[0] << 8) | (bytes[1] & 0xFF));
+        dnsHeader.ID = buffer.getShort(0);
 //        System.out.println("Header ID: " + String.format("%x", dnsHeader.ID));
 
+        //Third byte: QR, OPCODE, AA, TC, RD
+        byte flags = buffer.get(2);
+
         //Get QR
-        bytes = inputStream.readNBytes(1);
-        dnsHeader.QR = ((bytes[0] & 0x80) != 0);
+        dnsHeader.QR = ((flags & 0x80) != 0);
 //        System.out.println("Header QR: " + (dnsHeader.QR ? "Response" : "Query"));
 
         //Get OPCode
-        dnsHeader.OPCODE = (byte)((bytes[0] & 0x78) >> 3);
+        dnsHeader.OPCODE = (byte)((flags & 0x78) >> 3);
 //        System.out.println("Header OpCode: " + String.format("%x", dnsHeader.OPCODE));
 
-        //Get QR
-        dnsHeader.AA = ((bytes[0] & 0x04) != 0);
+        //Get AA
+        dnsHeader.AA = ((flags & 0x04) != 0);
 //        System.out.println("Header AA: " + (dnsHeader.AA ? "Server is an authority for the domain name" : "Not an authority"));
 
         //Get TC
-        dnsHeader.TC = ((bytes[0] & 0x02) != 0);
+        dnsHeader.TC = ((flags & 0x02) != 0);
 //        System.out.println("Header TC: " + (dnsHeader.TC ? "Truncated" : "Not truncated"));
 
         //Get RD
-        dnsHeader.RD = ((bytes[0] & 0x01) != 0);
+        dnsHeader.RD = ((flags & 0x01) != 0);
 //        System.out.println("Header RD: " + (dnsHeader.RD ? "Recursion Desired" : "Recursion Not Desired"));
 
+        //Fourth byte: RA, Z, AD, CD, RCODE
+        flags = buffer.get(3);
+
         //Get RA
-        bytes = inputStream.readNBytes(1);
-        dnsHeader.RA = ((bytes[0] & 0x80) != 0);
+        dnsHeader.RA = ((flags & 0x80) != 0);
 //        System.out.println("Header RA: " + (dnsHeader.RA ? "Recursion available" : "Recursion not available"));
 
         //Get Z
-        dnsHeader.Z = ((bytes[0] & 0x40) != 0);
+        dnsHeader.Z = ((flags & 0x40) != 0);
 //        System.out.println("Header Z: " + (dnsHeader.Z ? "True" : "False"));
 
         //Get AD
-        dnsHeader.AD = ((bytes[0] & 0x20) != 0);
+        dnsHeader.AD = ((flags & 0x20) != 0);
 //        System.out.println("Header AD: " + (dnsHeader.AD ? "Bit set" : "Bit not set"));
 
         //Get CD
-        dnsHeader.CD = ((bytes[0] & 0x10) != 0);
+        dnsHeader.CD = ((flags & 0x10) != 0);
 //        System.out.println("Header CD: " + (dnsHeader.CD ? "Non-authenticated data: Acceptable" : "Non-authenticated data: Unacceptable"));
 
         //Get RCODE
-        dnsHeader.RCODE = (byte)((bytes[0] & 0x0F));
+        dnsHeader.RCODE = (byte)((flags & 0x0F));
 //        System.out.println("Header RCODE: " + String.format("%x", dnsHeader.RCODE));
 
-        //Get QDCOUNT
-        bytes = inputStream.readNBytes(2);
-        dnsHeader.QDCOUNT = (short)((bytes[0] << 8) | (bytes[1] & 0xFF));
-//        System.out.println("Header QDCOUNT: " + String.format("%x", dnsHeader.QDCOUNT));
-
-        //Get ANCOUNT
-        bytes = inputStream.readNBytes(2);
-        dnsHeader.ANCOUNT = (short)((bytes[0] << 8) | (bytes[1] & 0xFF));
-//        System.out.println("Header ANCOUNT: " + String.format("%x", dnsHeader.ANCOUNT));
-
-        //Get NSCOUNT
-        bytes = inputStream.readNBytes(2);
-        dnsHeader.NSCOUNT = (short)((bytes[0] << 8) | (bytes[1] & 0xFF));
-//        System.out.println("Header NSCOUNT: " + String.format("%x", dnsHeader.NSCOUNT));
-
-        //Get ARCOUNT
-        bytes = inputStream.readNBytes(2);
-        dnsHeader.ARCOUNT = (short)((bytes[0] << 8) | (bytes[1] & 0xFF));
-//        System.out.println("Header ARCOUNT: " + String.format("%x", dnsHeader.ARCOUNT));
+        //Get the four section counts
+        dnsHeader.QDCOUNT = buffer.getShort(4);
+        dnsHeader.ANCOUNT = buffer.getShort(6);
+        dnsHeader.NSCOUNT = buffer.getShort(8);
+        dnsHeader.ARCOUNT = buffer.getShort(10);
+//        System.out.println("Header counts: " + dnsHeader.QDCOUNT + " " + dnsHeader.ANCOUNT + " " + dnsHeader.NSCOUNT + " " + dnsHeader.ARCOUNT);
 
         return dnsHeader;
     }
@@ -131,21 +116,20 @@ public class DNSHeader {
     }
 
 
-    //Encode the header to bytes to be sent back to the client. The OutputStream interface has methods to write a
-    //single byte or an array of bytes.
-    void writeBytes(OutputStream outputStream) throws IOException {
+    //Encode the header to bytes to be sent back to the client, at the current position of the buffer
+    void writeBytes(ByteBuffer buffer) {
 
         //Write the ID
-        outputStream.write(DNSMessage.shortToBytes(ID));
+        buffer.putShort(ID);
 
         //Byte 3
         byte thirdByte = 0;
         if (QR) { thirdByte = (byte)(thirdByte | 0x80); }
-        thirdByte = (byte) (thirdByte | (OPCODE & 0x78));
+        thirdByte = (byte) (thirdByte | ((OPCODE << 3) & 0x78));
         if (AA) { thirdByte = (byte)(thirdByte | 0x04); }
         if (TC) { thirdByte = (byte)(thirdByte | 0x02); }
         if (RD) { thirdByte = (byte)(thirdByte | 0x01); }
-        outputStream.write(thirdByte);
+        buffer.put(thirdByte);
 
         //Byte 4
         byte fourthByte = 0;
@@ -154,13 +138,13 @@ public class DNSHeader {
         if (AD) { fourthByte = (byte)(fourthByte | 0x20); }
         if (CD) { fourthByte = (byte)(fourthByte | 0x10); }
         fourthByte = (byte) (fourthByte | (RCODE & 0x0F));
-        outputStream.write(fourthByte);
+        buffer.put(fourthByte);
 
         //Write the last four shorts
-        outputStream.write(DNSMessage.shortToBytes(QDCOUNT));
-        outputStream.write(DNSMessage.shortToBytes(ANCOUNT));
-        outputStream.write(DNSMessage.shortToBytes(NSCOUNT));
-        outputStream.write(DNSMessage.shortToBytes(ARCOUNT));
+        buffer.putShort(QDCOUNT);
+        buffer.putShort(ANCOUNT);
+        buffer.putShort(NSCOUNT);
+        buffer.putShort(ARCOUNT);
 
     }
 
@@ -0,0 +1,110 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+//A latency histogram in the style of HdrHistogram. Values (nanoseconds) are counted in buckets whose width doubles
+//every 32 buckets, so each bucket is within about 3% of the values in it, from single nanoseconds up to minutes, in a
+//fixed array of under 1200 counters. Recording is one atomic increment with no lock and no allocation, cheap enough
+//to do several times per request. Percentiles are worked out from a copy of the counters, so they are approximate
+//while recording carries on.
+public class DNSHistogram {
+
+    //32 buckets per power of two
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    //Values from 2^40 ns (about 18 minutes) up all land in the last bucket
+    private static final int MAX_SHIFT = 40 - SUB_BITS;
+    private static final int BUCKETS = (MAX_SHIFT + 2) * SUB_BUCKETS;
+
+    //Member Variables
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+
+
+    //Count one value
+    void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(indexOf(value));
+        sum.add(value);
+    }
+
+    //Count the time since start (a System.nanoTime() reading)
+    void recordSince(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    //Number of values recorded
+    long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    //Total of the values recorded
+    long sum() {
+        return sum.sum();
+    }
+
+    //The values at each of the given fractions (0.5 for the median, 0.99 for the 99th percentile...), each given as
+    //the top of the bucket it falls in. All 0 when nothing has been recorded.
+    long[] percentiles(double... fractions) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+
+        long[] values = new long[fractions.length];
+        for (int f = 0; f < fractions.length; f++) {
+            long rank = (long) Math.ceil(fractions[f] * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS && total > 0; i++) {
+                seen += snapshot[i];
+                if (seen >= Math.max(1, rank)) {
+                    values[f] = highestIn(i);
+                    break;
+                }
+            }
+        }
+        return values;
+    }
+
+
+    //Bucket for a value: exact below 64, then 32 buckets for each power of two
+    private static int indexOf(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        if (shift > MAX_SHIFT) {
+            return BUCKETS - 1;
+        }
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    //Largest value that lands in a bucket
+    private static long highestIn(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+
+    //IDE generated toString method. Useful for debugging
+    @Override
+    public String toString() {
+        long[] values = percentiles(0.5, 0.99);
+        return "DNSHistogram{" +
+                "count=" + count() +
+                ", p50=" + values[0] +
+                ", p99=" + values[1] +
+                '}';
+    }
+
+}
@@ -1,11 +1,7 @@
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 
 //This corresponds to an entire DNS Message.
 public class DNSMessage {
@@ -26,43 +22,56 @@ public class DNSMessage {
     //An arraylist of "additional records" objects which will almost be ignored
     ArrayList< DNSRecord> dnsAdditionalRecords = new ArrayList<>();
 
-    //The byte array containing the complete message in this class.
-    //Needed to handle the compression technique
+    //The byte array the message was decoded from, kept for debugging
     byte[] messageBytes;
 
 
+    //Per-thread scratch space for encoding, so encoding a message never allocates buffers or tables.
+    //65535 is the largest message DNS allows.
+    private static final ThreadLocal<ByteBuffer> ENCODE_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(65535));
+    private static final ThreadLocal<DNSCompressionTable> COMPRESSION_TABLE = ThreadLocal.withInitial(DNSCompressionTable::new);
+
     //Static constructor
     static DNSMessage decodeMessage(byte[] bytes) throws IOException {
-        //Create new DNSMessage Object
-        DNSMessage dnsMessage = new DNSMessage();
-
-        //Save the byte stream to member variable
-        dnsMessage.messageBytes = bytes;
+        return decodeMessage(bytes, bytes.length);
+    }
 
-        //Create input stream to read the message bytes sequentially
-        ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(dnsMessage.messageBytes);
+    //Decode the first length bytes of an array. The bytes are parsed in place, nothing is copied.
+    static DNSMessage decodeMessage(byte[] bytes, int length) throws IOException {
+        DNSMessage dnsMessage = decodeMessage(DNSMessageView.wrap(bytes, length));
 
-        //Create DNSHeader object and decode the header
-        dnsMessage.dnsHeader = DNSHeader.decodeHeader(byteArrayInputStream);
+        //Save the byte array to member variable
+        dnsMessage.messageBytes = bytes;
+        return dnsMessage;
+    }
 
-        //Create DNSQuestion objects, decode the questions, and add them to an array
-        for (int i = 0; i < dnsMessage.dnsHeader.getQDCOUNT(); i++) {
-            dnsMessage.dnsQuestions.add(DNSQuestion.decodeQuestion(byteArrayInputStream, dnsMessage));
-        }
+    //Materialise every part of a message view
+    static DNSMessage decodeMessage(DNSMessageView view) throws IOException {
+        //Create new DNSMessage Object
+        DNSMessage dnsMessage = new DNSMessage();
 
-        //Create DNSRecord objects and add them to the appropriate dnsAnswers
-        for (int i = 0; i < dnsMessage.dnsHeader.getANCOUNT(); i++) {
-            dnsMessage.dnsAnswers.add(DNSRecord.decodeRecord(byteArrayInputStream, dnsMessage));
-        }
+        try {
+            //Create DNSHeader object and decode the header
+            dnsMessage.dnsHeader = DNSHeader.decodeHeader(view.buffer);
 
-        //Create DNSRecord objects and add them to the appropriate dnsAuthorityRecords
-        for (int i = 0; i < dnsMessage.dnsHeader.getNSCOUNT(); i++) {
-            dnsMessage.dnsAuthorityRecords.add(DNSRecord.decodeRecord(byteArrayInputStream, dnsMessage));
-        }
+            //Create DNSQuestion objects, decode the questions, and add them to an array
+            for (int i = 0; i < view.questionCount(); i++) {
+                dnsMessage.dnsQuestions.add(view.question(i));
+            }
 
-        //Create DNSRecord objects and add them to the appropriate dnsAdditionalRecords
-        for (int i = 0; i < dnsMessage.dnsHeader.getARCOUNT(); i++) {
-            dnsMessage.dnsAdditionalRecords.add(DNSRecord.decodeRecord(byteArrayInputStream, dnsMessage));
+            //Create DNSRecord objects and add them to the appropriate section
+            int record = 0;
+            for (int i = 0; i < view.answerCount(); i++) {
+                dnsMessage.dnsAnswers.add(view.record(record++));
+            }
+            for (int i = 0; i < view.authorityCount(); i++) {
+                dnsMessage.dnsAuthorityRecords.add(view.record(record++));
+            }
+            for (int i = 0; i < view.additionalCount(); i++) {
+                dnsMessage.dnsAdditionalRecords.add(view.record(record++));
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Malformed DNS message", e);
         }
 
         //Return the complete DNSMessage
@@ -70,58 +79,18 @@ public class DNSMessage {
     }
 
 
-    //Read the pieces of a domain name starting from the current position of the input stream
-    ArrayList<String> readDomainName(InputStream inputStream) throws IOException {
-
-        //Temp variables
-        int subDomainSize = 0;
-        byte[] tempBytes;
-        String subDomainString = "";
-        ArrayList<String> subDomainNames = new ArrayList<>();
-
-        //Process all subdomains, break when terminating character received.
+    //Offset just past the domain name that starts at offset (a compression pointer ends the name where it is)
+    static int skipDomainName(ByteBuffer buffer, int offset) {
         while (true) {
-            //Read in the one byte
-            tempBytes = inputStream.readNBytes(1);
-
-            //If byte is the terminating character break
-            if (new String(tempBytes).equals("\0")) {
-                break;
+            int subDomainSize = buffer.get(offset) & 0xFF;
+            if (subDomainSize == 0) {
+                return offset + 1;
             }
-
-            //Convert byte to int representing the message size
-            subDomainSize = tempBytes[0];
-
-            //Read in the message (bytes) based on message size
-            tempBytes = inputStream.readNBytes(subDomainSize);
-
-            //Convert message bytes to String
-            subDomainString = new String(tempBytes);
-
-            //Add subdomain to arraylist member variable
-            subDomainNames.add(subDomainString);
-
+            if ((subDomainSize & 0xC0) == 0xC0) {
+                return offset + 2;
+            }
+            offset += subDomainSize + 1;
         }
-
-//        System.out.println(subDomainNames);
-
-        //Return domain array
-        return subDomainNames;
-
-    }
-
-
-    //Same, but used when there's compression and to find the domain from earlier in the message.
-    //This method makes a ByteArrayInputStream that starts at the specified byte and calls the other version of this method
-    ArrayList<String> readDomainName(int firstByte) throws IOException {
-        //Create new input stream from the message bytes
-        ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(messageBytes);
-
-        //Advance pointer in input stream to beginning of domain name
-        byteArrayInputStream.readNBytes(firstByte);
-
-        //Return domain name string array
-        return readDomainName(byteArrayInputStream);
     }
 
 
@@ -130,8 +99,11 @@ public class DNSMessage {
         //Create a new instance of DNSMessage to reply with
         DNSMessage dnsMessage = new DNSMessage();
 
-        //Copy the additional records over (should include a dig record with a type of 41.)
-        dnsMessage.dnsAdditionalRecords = request.dnsAdditionalRecords;
+        //Answer the client's OPT record (type 41) with our own, rather than echoing its additional records
+        DNSRecord requestOpt = DNSEdns.find(request.dnsAdditionalRecords);
+        if (requestOpt != null) {
+            dnsMessage.dnsAdditionalRecords.add(DNSEdns.responseOpt(requestOpt, 0));
+        }
 
         //Copy the authority records over
         dnsMessage.dnsAuthorityRecords = request.dnsAuthorityRecords;
@@ -150,108 +122,79 @@ public class DNSMessage {
     }
 
 
-    //Get the bytes to put in a packet and send back
-    byte[] toBytes() throws IOException {
-
-        //Create output stream and send to other methods for writing
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-
-        //Hashmap to store domain names and output stream locations for compression
-        HashMap<String, Integer> domainsHashmap = new HashMap<>();
-
-        //Write the header using writeBytes
-        this.dnsHeader.writeBytes(byteArrayOutputStream);
-
-        //For each of the following Questions/Records, write to the output stream
-        for (DNSQuestion dnsQuestion : this.dnsQuestions) {
-            dnsQuestion.writeBytes(byteArrayOutputStream, domainsHashmap);
+    //Build a response from cache entries, one per question, serving every section they hold. TTLs count down from
+    //when each entry was cached.
+    static DNSMessage buildResponseFromCache(DNSMessage request, ArrayList<DNSCacheEntry> entries) {
+        DNSMessage dnsMessage = new DNSMessage();
+        for (DNSCacheEntry entry : entries) {
+            int age = entry.age();
+            addWithRemainingTTL(dnsMessage.dnsAnswers, entry.answers, age);
+            addWithRemainingTTL(dnsMessage.dnsAuthorityRecords, entry.authorityRecords, age);
+            addWithRemainingTTL(dnsMessage.dnsAdditionalRecords, entry.additionalRecords, age);
         }
 
-        for (DNSRecord dnsRecord : this.dnsAnswers) {
-            dnsRecord.writeBytes(byteArrayOutputStream, domainsHashmap);
+        //Answer the request's OPT record (type 41) with our own after the cached additional records
+        DNSRecord requestOpt = DNSEdns.find(request.dnsAdditionalRecords);
+        if (requestOpt != null) {
+            dnsMessage.dnsAdditionalRecords.add(DNSEdns.responseOpt(requestOpt, 0));
         }
 
-        for (DNSRecord dnsRecord : this.dnsAuthorityRecords) {
-            dnsRecord.writeBytes(byteArrayOutputStream, domainsHashmap);
-        }
+        //Copy the questions over and construct the header
+        dnsMessage.dnsQuestions = request.dnsQuestions;
+        dnsMessage.dnsHeader = DNSHeader.buildResponseHeader(request, dnsMessage);
+        return dnsMessage;
+    }
 
-        for (DNSRecord dnsRecord : this.dnsAdditionalRecords) {
-            dnsRecord.writeBytes(byteArrayOutputStream, domainsHashmap);
+    //Copy cached records into a response section with their TTLs reduced by the time spent in the cache
+    private static void addWithRemainingTTL(ArrayList<DNSRecord> section, ArrayList<DNSRecord> cached, int age) {
+        for (DNSRecord dnsRecord : cached) {
+            section.add(dnsRecord.withTTL(Math.max(0, dnsRecord.TTL - age)));
         }
-
-        //Convert output stream to byte array and return
-        return byteArrayOutputStream.toByteArray();
-
     }
 
 
-    //If this first time this domain name has been seen in the packet, write it using the DNS encoding (each segment of
-    //the domain prefixed with its length, 0 at the end), and add it to the hash map. Otherwise, write a back pointer to where
-    //the domain has been seen previously.
-    static void writeDomainName(ByteArrayOutputStream byteArrayOutputStream, HashMap<String, Integer> domainHashMap, ArrayList<String> domainPieces) throws IOException {
-
-        //Convert subdomains to full domain name string
-        String fullDomain = DNSMessage.octetsToString(domainPieces);
-
-        //If the hashmap already has the domain, then it has been used before and a pointer is needed
-        if (domainHashMap.containsKey(fullDomain)){
-
-            //Get the pointer location of the domain
-            int domainPointer = domainHashMap.get(fullDomain);
-
-            //Temp byte array
-            byte[] bytes = new byte[2];
-
-            //Set the first byte
-            bytes[0] = (byte) ((domainPointer >>> 8) | 0xC0);
-
-            //Set the second byte
-            bytes[1] = (byte) (domainPointer & 0xFF);
-
-            //Write compressed bytes to output stream
-            byteArrayOutputStream.write(bytes);
-
-        } else{
-            //Save pointer to hashmap
-            domainHashMap.put(fullDomain, byteArrayOutputStream.size());
-
-            //Loop through each subdomain
-            for (String str : domainPieces) {
+    //Get the bytes to put in a packet and send back. Encodes into this thread's scratch buffer and copies the result
+    //out; use writeTo to encode straight into a buffer of your own without allocating anything.
+    byte[] toBytes() {
+        ByteBuffer buffer = ENCODE_BUFFER.get();
+        buffer.clear();
+        writeTo(buffer);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
 
-                //Write the length of each subdomain to the output stream
-                byteArrayOutputStream.write(str.length());
 
-                //For each character
-                for (int i = 0; i < str.length(); i++) {
+    //Write the message at the current position of the buffer, compressing names with this thread's table
+    void writeTo(ByteBuffer buffer) {
+        writeTo(buffer, COMPRESSION_TABLE.get());
+    }
 
-                    //Write out each character in the subdomain to the output stream
-                    byteArrayOutputStream.write(str.charAt(i));
-                }
+    void writeTo(ByteBuffer buffer, DNSCompressionTable compressionTable) {
 
-            }
+        //Name offsets are counted from the start of this message
+        compressionTable.reset(buffer.position());
 
-            //Write the 0 terminating character to the output stream
-            byteArrayOutputStream.write(0);
+        //Write the header using writeBytes
+        this.dnsHeader.writeBytes(buffer);
 
+        //For each of the following Questions/Records, write to the buffer
+        for (DNSQuestion dnsQuestion : this.dnsQuestions) {
+            dnsQuestion.writeBytes(buffer, compressionTable);
         }
 
-    }
+        for (DNSRecord dnsRecord : this.dnsAnswers) {
+            dnsRecord.writeBytes(buffer, compressionTable);
+        }
 
+        for (DNSRecord dnsRecord : this.dnsAuthorityRecords) {
+            dnsRecord.writeBytes(buffer, compressionTable);
+        }
 
-    //Join the pieces of a domain name with dots ([ "utah", "edu"] -> "utah.edu" )
-    static String octetsToString(ArrayList<String> octets) {
-        return String.join(".", octets);
-    }
+        for (DNSRecord dnsRecord : this.dnsAdditionalRecords) {
+            dnsRecord.writeBytes(buffer, compressionTable);
+        }
 
-    //Takes in a short and returns it as a byte array
-    static byte[] shortToBytes(short s){
-        return ByteBuffer.allocate(2).putShort(s).array();
     }
 
-    //Takes in an integer and returns it as a byte array
-    static byte[] intToBytes(int i){
-        return ByteBuffer.allocate(4).putInt(i).array();
-    }
 
     //IDE generated toString method. Useful for debugging
     @Override
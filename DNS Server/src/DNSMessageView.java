@@ -0,0 +1,186 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+//A read-only view over a DNS message that is still in its receive buffer. Nothing is copied when the view is made:
+//header fields are read straight out of the buffer, the start of every question and record is found by skipping over
+//names with offset arithmetic, and a DNSQuestion or DNSRecord object is only created when someone asks for one.
+//Offsets are absolute, counted from index 0 of the buffer, which must be the first byte of the message.
+public class DNSMessageView {
+
+    //Member Variables
+    final ByteBuffer buffer;
+    private final int length;
+
+    //Start offset of each question, then each record, plus one past the end. Built on first use.
+    private int[] offsets;
+
+
+    //Constructor
+    private DNSMessageView(ByteBuffer buffer, int length) {
+        this.buffer = buffer;
+        this.length = length;
+    }
+
+    //View the first length bytes of an array
+    static DNSMessageView wrap(byte[] bytes, int length) {
+        return new DNSMessageView(ByteBuffer.wrap(bytes, 0, length), length);
+    }
+
+    //View a buffer from index 0 up to its limit
+    static DNSMessageView wrap(ByteBuffer buffer) {
+        return new DNSMessageView(buffer, buffer.limit());
+    }
+
+
+    //Header fields, read in place
+    short id() {
+        return buffer.getShort(0);
+    }
+
+    void setId(short id) {
+        buffer.putShort(0, id);
+    }
+
+    boolean isResponse() {
+        return (buffer.get(2) & 0x80) != 0;
+    }
+
+    boolean isTruncated() {
+        return (buffer.get(2) & 0x02) != 0;
+    }
+
+    byte rcode() {
+        return (byte) (buffer.get(3) & 0x0F);
+    }
+
+    int questionCount() {
+        return buffer.getShort(4) & 0xFFFF;
+    }
+
+    int answerCount() {
+        return buffer.getShort(6) & 0xFFFF;
+    }
+
+    int authorityCount() {
+        return buffer.getShort(8) & 0xFFFF;
+    }
+
+    int additionalCount() {
+        return buffer.getShort(10) & 0xFFFF;
+    }
+
+    //Total number of resource records after the question section
+    int recordCount() {
+        return answerCount() + authorityCount() + additionalCount();
+    }
+
+    int length() {
+        return length;
+    }
+
+
+    //Offset of the i-th question
+    int questionOffset(int i) throws IOException {
+        return index()[i];
+    }
+
+    //Offset just past the question section
+    int questionEnd() throws IOException {
+        return index()[questionCount()];
+    }
+
+    //Offset of the i-th record, counting answers, then authority, then additional records
+    int recordOffset(int i) throws IOException {
+        return index()[questionCount() + i];
+    }
+
+    //Offset just past the end of the i-th record
+    int recordEnd(int i) throws IOException {
+        return index()[questionCount() + i + 1];
+    }
+
+    //Offset where the fixed fields (TYPE, CLASS, TTL, RDLENGTH) of the i-th record start
+    int recordFieldsOffset(int i) throws IOException {
+        return DNSMessage.skipDomainName(buffer, recordOffset(i));
+    }
+
+    //TYPE of the i-th record, without decoding it
+    short recordType(int i) throws IOException {
+        return buffer.getShort(recordFieldsOffset(i));
+    }
+
+
+    //Materialise one question
+    DNSQuestion question(int i) throws IOException {
+        return DNSQuestion.decodeQuestion(buffer, questionOffset(i));
+    }
+
+    //Materialise one record
+    DNSRecord record(int i) throws IOException {
+        return DNSRecord.decodeRecord(buffer, recordOffset(i));
+    }
+
+
+    //Compare the question sections of two messages, names case-insensitively (so 0x20 mixed case still matches)
+    boolean sameQuestions(DNSMessageView other) throws IOException {
+        if (questionCount() != other.questionCount()) {
+            return false;
+        }
+        int end = questionEnd();
+        if (other.questionEnd() != end) {
+            return false;
+        }
+        for (int i = 12; i < end; i++) {
+            if (toLower(buffer.get(i)) != toLower(other.buffer.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    //Walk the message once and remember where each question and record starts
+    private int[] index() throws IOException {
+        if (offsets != null) {
+            return offsets;
+        }
+        if (length < 12) {
+            throw new IOException("Message shorter than a header");
+        }
+        int questions = questionCount();
+        int records = recordCount();
+
+        //The counts come from the sender. The smallest question is 5 bytes (root name, QTYPE, QCLASS) and the smallest
+        //record 11, so counts the packet can't hold are rejected before anything is sized from them.
+        if (questions * 5L + records * 11L > length - 12) {
+            throw new IOException("Malformed DNS message: header counts don't fit in " + length + " bytes");
+        }
+        int[] index = new int[questions + records + 1];
+        int position = 12;
+        try {
+            for (int i = 0; i < questions; i++) {
+                index[i] = position;
+                position = DNSMessage.skipDomainName(buffer, position) + 4;
+            }
+            for (int i = 0; i < records; i++) {
+                index[questions + i] = position;
+                position = DNSMessage.skipDomainName(buffer, position);
+                position += 10 + (buffer.getShort(position + 8) & 0xFFFF);
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Malformed DNS message", e);
+        }
+        if (position > length) {
+            throw new IOException("Malformed DNS message: runs past the end of the packet");
+        }
+        index[questions + records] = position;
+        offsets = index;
+        return offsets;
+    }
+
+    //ASCII lower case of one byte; label lengths and non-letters are unchanged
+    private static int toLower(byte b) {
+        return (b >= 'A' && b <= 'Z') ? b + 32 : b;
+    }
+
+}
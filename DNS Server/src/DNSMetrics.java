@@ -0,0 +1,296 @@
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+//Counters and latency histograms for the whole server. Counters are LongAdders and histograms are DNSHistograms, so
+//the threads doing the work never contend on a lock to record anything, and the cost per request is a few adds and
+//System.nanoTime() calls. The time spent on each request is split into stages:
+//  queue     waiting for a worker, for requests that weren't answered straight from the wire
+//  decode    parsing a request that wasn't answered straight from the wire
+//  cache     looking questions up in the cache (for wire answers, including writing the reply)
+//  upstream  waiting on the upstream lookup for a miss
+//  encode    writing a reply from decoded records
+//  total     from reading the request to handing the reply to the socket
+//Each upstream keeps its own round trip statistics (see DNSUpstream).
+//Everything can be read over JMX (DNSMetricsMXBean), and with dns.metrics.port set, as plain text in the Prometheus
+//format from http://127.0.0.1:<dns.metrics.port>/metrics. The endpoint only listens on the loopback interface.
+public class DNSMetrics implements DNSMetricsMXBean {
+
+    //Counters
+    static final LongAdder udpQueries = new LongAdder();
+    static final LongAdder tcpQueries = new LongAdder();
+    static final LongAdder cacheHits = new LongAdder();          //Questions answered from the cache
+    static final LongAdder cacheMisses = new LongAdder();        //Questions that needed an upstream lookup
+    static final LongAdder cacheEvictions = new LongAdder();     //Live entries pushed out to make room
+    static final LongAdder cacheRejections = new LongAdder();    //New entries the admission policy turned away
+    static final LongAdder cacheExpirations = new LongAdder();   //Entries removed because they ran out of time
+    static final LongAdder staleAnswers = new LongAdder();
+    static final LongAdder prefetches = new LongAdder();
+    static final LongAdder upstreamQueries = new LongAdder();
+    static final LongAdder upstreamTimeouts = new LongAdder();   //Attempts that went unanswered, each retry counted
+    static final LongAdder upstreamTcpFallbacks = new LongAdder();
+    static final LongAdder serverFailures = new LongAdder();     //SERVFAIL replies we sent
+    static final LongAdder dropped = new LongAdder();            //Requests or replies that were thrown away
+    static final LongAdder queryLogDropped = new LongAdder();    //Query log entries lost because the writer fell behind
+    static final LongAdder rateLimitDropped = new LongAdder();   //Queries over the rate limit that got no reply
+    static final LongAdder rateLimitSlipped = new LongAdder();   //Queries over the rate limit that got a truncated reply
+    static final LongAdder shedQueueFull = new LongAdder();      //Requests dropped because too many were waiting for a worker
+    static final LongAdder shedDeadline = new LongAdder();       //Requests dropped because they waited too long for a worker
+    static final LongAdder shedMisses = new LongAdder();         //Cache misses dropped while the workers were behind
+    static final LongAdder shedPrefetches = new LongAdder();     //Prefetches skipped while the workers were behind
+
+    //Stage latencies
+    static final DNSHistogram queue = new DNSHistogram();
+    static final DNSHistogram decode = new DNSHistogram();
+    static final DNSHistogram cache = new DNSHistogram();
+    static final DNSHistogram upstream = new DNSHistogram();
+    static final DNSHistogram encode = new DNSHistogram();
+    static final DNSHistogram total = new DNSHistogram();
+
+    //Percentiles reported for each histogram
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    //Upstreams to report on, and the scrape endpoint
+    private static volatile DNSUpstream[] upstreams = new DNSUpstream[0];
+    private static HttpServer httpServer;
+
+
+    //Register the MBean and start the scrape endpoint, if configured
+    static synchronized void start(DNSUpstream[] servers) {
+        upstreams = servers;
+        try {
+            ObjectName name = new ObjectName("dnsserver:type=Metrics");
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new DNSMetrics(), name);
+            }
+        } catch (JMException e) {
+            System.out.println("Failed to register metrics MBean: " + e.getMessage());
+        }
+
+        if (DNSConfig.METRICS_PORT > 0 && httpServer == null) {
+            try {
+                httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), DNSConfig.METRICS_PORT), 0);
+                httpServer.createContext("/metrics", exchange -> {
+                    byte[] body = report().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                });
+                httpServer.start();
+                System.out.println("Metrics on http://127.0.0.1:" + DNSConfig.METRICS_PORT + "/metrics");
+            } catch (IOException e) {
+                System.out.println("Failed to start metrics endpoint: " + e.getMessage());
+                httpServer = null;
+            }
+        }
+    }
+
+    //Stop the scrape endpoint
+    static synchronized void stop() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpServer = null;
+        }
+    }
+
+
+    //Everything, in the Prometheus text format
+    static String report() {
+        StringBuilder out = new StringBuilder(4096);
+        value(out, "dns_queries_total", "transport=\"udp\"", udpQueries.sum());
+        value(out, "dns_queries_total", "transport=\"tcp\"", tcpQueries.sum());
+        value(out, "dns_cache_hits_total", null, cacheHits.sum());
+        value(out, "dns_cache_misses_total", null, cacheMisses.sum());
+        value(out, "dns_cache_hit_ratio", null, hitRatio());
+        value(out, "dns_cache_entries", null, DNSCache.size());
+        value(out, "dns_cache_evictions_total", null, cacheEvictions.sum());
+        value(out, "dns_cache_rejections_total", null, cacheRejections.sum());
+        value(out, "dns_cache_expirations_total", null, cacheExpirations.sum());
+        value(out, "dns_cache_stale_answers_total", null, staleAnswers.sum());
+        value(out, "dns_cache_prefetches_total", null, prefetches.sum());
+        value(out, "dns_upstream_queries_total", null, upstreamQueries.sum());
+        value(out, "dns_upstream_timeouts_total", null, upstreamTimeouts.sum());
+        value(out, "dns_upstream_tcp_fallbacks_total", null, upstreamTcpFallbacks.sum());
+        value(out, "dns_servfail_total", null, serverFailures.sum());
+        value(out, "dns_dropped_total", null, dropped.sum());
+        value(out, "dns_querylog_dropped_total", null, queryLogDropped.sum());
+        value(out, "dns_ratelimited_total", "action=\"drop\"", rateLimitDropped.sum());
+        value(out, "dns_ratelimited_total", "action=\"slip\"", rateLimitSlipped.sum());
+        value(out, "dns_shed_total", "reason=\"queue\"", shedQueueFull.sum());
+        value(out, "dns_shed_total", "reason=\"deadline\"", shedDeadline.sum());
+        value(out, "dns_shed_total", "reason=\"miss\"", shedMisses.sum());
+        value(out, "dns_shed_total", "reason=\"prefetch\"", shedPrefetches.sum());
+
+        out.append("# TYPE dns_stage_seconds summary\n");
+        for (Map.Entry<String, DNSHistogram> stage : stages().entrySet()) {
+            summary(out, "dns_stage_seconds", "stage=\"" + stage.getKey() + "\"", stage.getValue());
+        }
+
+        out.append("# TYPE dns_upstream_rtt_seconds summary\n");
+        for (DNSUpstream server : upstreams) {
+            summary(out, "dns_upstream_rtt_seconds", upstreamLabel(server), server.rtt);
+        }
+        for (DNSUpstream server : upstreams) {
+            String label = upstreamLabel(server);
+            value(out, "dns_upstream_srtt_seconds", label, server.srtt() / 1e9);
+            value(out, "dns_upstream_rttvar_seconds", label, server.rttvar() / 1e9);
+            value(out, "dns_upstream_answers_total", label, server.answers());
+            value(out, "dns_upstream_failures_total", label, server.failures());
+            value(out, "dns_upstream_healthy", label, server.isHealthy() ? 1 : 0);
+        }
+        return out.toString();
+    }
+
+    private static void value(StringBuilder out, String name, String labels, long value) {
+        line(out, name, labels, Long.toString(value));
+    }
+
+    private static void value(StringBuilder out, String name, String labels, double value) {
+        line(out, name, labels, Double.toString(value));
+    }
+
+    private static void summary(StringBuilder out, String name, String labels, DNSHistogram histogram) {
+        long[] values = histogram.percentiles(QUANTILES);
+        for (int i = 0; i < QUANTILES.length; i++) {
+            line(out, name, labels + ",quantile=\"" + QUANTILES[i] + "\"", Double.toString(values[i] / 1e9));
+        }
+        line(out, name + "_sum", labels, Double.toString(histogram.sum() / 1e9));
+        line(out, name + "_count", labels, Long.toString(histogram.count()));
+    }
+
+    private static void line(StringBuilder out, String name, String labels, String value) {
+        out.append(name);
+        if (labels != null) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static String upstreamLabel(DNSUpstream server) {
+        return "upstream=\"" + server.address.getHostString() + ":" + server.address.getPort() + "\"";
+    }
+
+    private static Map<String, DNSHistogram> stages() {
+        Map<String, DNSHistogram> stages = new LinkedHashMap<>();
+        stages.put("queue", queue);
+        stages.put("decode", decode);
+        stages.put("cache", cache);
+        stages.put("upstream", upstream);
+        stages.put("encode", encode);
+        stages.put("total", total);
+        return stages;
+    }
+
+    private static double hitRatio() {
+        long hits = cacheHits.sum();
+        long lookups = hits + cacheMisses.sum();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+
+    //MBean attributes
+    @Override
+    public long getUdpQueries() {
+        return udpQueries.sum();
+    }
+
+    @Override
+    public long getTcpQueries() {
+        return tcpQueries.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        return hitRatio();
+    }
+
+    @Override
+    public int getCacheEntries() {
+        return DNSCache.size();
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        return cacheEvictions.sum();
+    }
+
+    @Override
+    public long getUpstreamQueries() {
+        return upstreamQueries.sum();
+    }
+
+    @Override
+    public long getUpstreamTimeouts() {
+        return upstreamTimeouts.sum();
+    }
+
+    @Override
+    public long getServerFailures() {
+        return serverFailures.sum();
+    }
+
+    @Override
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public long getShed() {
+        return shedQueueFull.sum() + shedDeadline.sum() + shedMisses.sum() + shedPrefetches.sum();
+    }
+
+    @Override
+    public Map<String, Double> getStageMedianMicros() {
+        return stagePercentile(0.5);
+    }
+
+    @Override
+    public Map<String, Double> getStageP99Micros() {
+        return stagePercentile(0.99);
+    }
+
+    private static Map<String, Double> stagePercentile(double fraction) {
+        Map<String, Double> values = new LinkedHashMap<>();
+        for (Map.Entry<String, DNSHistogram> stage : stages().entrySet()) {
+            values.put(stage.getKey(), stage.getValue().percentiles(fraction)[0] / 1e3);
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, Double> getUpstreamSrttMillis() {
+        Map<String, Double> values = new LinkedHashMap<>();
+        for (DNSUpstream server : upstreams) {
+            values.put(server.address.toString(), server.srtt() / 1e6);
+        }
+        return values;
+    }
+
+    @Override
+    public String getReport() {
+        return report();
+    }
+
+}
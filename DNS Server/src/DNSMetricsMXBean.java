@@ -0,0 +1,43 @@
+import java.util.Map;
+
+//What DNSMetrics shows over JMX, as the MBean dnsserver:type=Metrics. Latencies are in microseconds, upstream round
+//trip times in milliseconds.
+public interface DNSMetricsMXBean {
+
+    long getUdpQueries();
+
+    long getTcpQueries();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    double getCacheHitRatio();
+
+    int getCacheEntries();
+
+    long getCacheEvictions();
+
+    long getUpstreamQueries();
+
+    long getUpstreamTimeouts();
+
+    long getServerFailures();
+
+    long getDropped();
+
+    //Requests dropped by overload protection
+    long getShed();
+
+    //Median and 99th percentile of each stage, by stage name
+    Map<String, Double> getStageMedianMicros();
+
+    Map<String, Double> getStageP99Micros();
+
+    //Smoothed round trip time of each upstream, by address
+    Map<String, Double> getUpstreamSrttMillis();
+
+    //Everything, in the same text format as the scrape endpoint
+    String getReport();
+
+}
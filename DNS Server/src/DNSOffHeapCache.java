@@ -0,0 +1,481 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+//Cache storage outside the Java heap, used by DNSCache when dns.cache.store=offheap. The heap store costs a few
+//hundred bytes of objects per entry (question, records, names, lists) that the garbage collector has to trace; with
+//tens of millions of entries that makes for long pauses. Here an entry is one flat record in direct memory: its key
+//(the question, lower case), when it was cached, its TTL and the pre-encoded response with the offsets of its TTLs.
+//The only objects are a handful of buffers per segment, whatever the number of entries.
+//The store is split into segments by hash, each with its own lock. A segment has an open addressing hash index (one
+//long per slot: the key's hash and where its record is) and a ring of fixed-size slabs that records are appended to.
+//When the current slab is full the next one in the ring, the oldest, is reclaimed: entries that were hit since it was
+//last reclaimed and haven't expired get a second chance and are compacted to the front of it, everything else is
+//dropped. That is a CLOCK approximation of LRU at slab granularity, with no per-entry links to maintain.
+//Lookups copy the record out under the lock and build the DNSCacheEntry afterwards; answerFromWire only needs the
+//encoded bytes, so the sections are only decoded for callers that ask for them.
+public class DNSOffHeapCache {
+
+    //Record header layout, all offsets from the start of the record
+    private static final int LENGTH = 0;            //int, whole record including padding
+    private static final int HASH = 4;              //int
+    private static final int CREATED = 8;           //long, epoch milliseconds
+    private static final int TTL = 16;              //int, seconds
+    private static final int KEY_LENGTH = 20;       //short
+    private static final int QUESTION_END = 22;     //short
+    private static final int TTL_COUNT = 24;        //short
+    private static final int WIRE_LENGTH = 26;      //short, unsigned
+    private static final int RCODE = 28;            //byte
+    private static final int FLAGS = 29;            //byte
+    private static final int HITS = 30;             //short, saturating
+    private static final int HEADER = 32;           //then the key, the TTL offsets (a short each) and the response
+
+    //Flags
+    private static final byte HIT = 1;              //Looked up since the slab was last reclaimed
+    private static final byte PREFETCHED = 2;       //Already handed to the prefetcher
+
+    //Records start here in each slab, so a location is never 0 (0 marks an empty index slot)
+    private static final int SLAB_START = 8;
+
+    //Slab count per segment and slab size are limited by how a location is packed: slab << 24 | offset
+    private static final int MAX_SLABS = 256;
+    private static final int MAX_SLAB_BYTES = 1 << 24;
+    private static final int MIN_SLAB_BYTES = 1 << 16;
+
+    //Fewest segments, each with at least two slabs of the smallest size, so the least direct memory the slabs take
+    private static final int MIN_SEGMENTS = 2;
+    static final long MIN_BYTES = MIN_SEGMENTS * 2L * MIN_SLAB_BYTES;
+
+    //Largest key: a name plus QTYPE and QCLASS
+    private static final int MAX_KEY = DomainName.MAX_LENGTH + 4;
+
+    //One independently locked part of the store
+    private static final class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+        final LongBuffer index;         //High 32 bits the key's hash, low 32 bits its record's location, 0 if empty
+        final int mask;
+        final int maxCount;
+        final ByteBuffer[] slabs;
+        final int[] used;               //End of the records in each slab
+        final byte[] scratch;           //For moving records while compacting a slab
+        int current;                    //Slab being appended to
+        int count;
+
+        Segment(int maxCount, int slabCount, int slabBytes) {
+            this.maxCount = maxCount;
+            int capacity = Integer.highestOneBit(Math.max(32, maxCount) - 1) << 2;
+            index = ByteBuffer.allocateDirect(capacity * 8).asLongBuffer();
+            mask = capacity - 1;
+            slabs = new ByteBuffer[slabCount];
+            used = new int[slabCount];
+            for (int i = 0; i < slabCount; i++) {
+                slabs[i] = ByteBuffer.allocateDirect(slabBytes);
+                used[i] = SLAB_START;
+            }
+            scratch = new byte[Math.min(slabBytes, HEADER + MAX_KEY + 2 * 65535 + 65535)];
+        }
+    }
+
+    //Member Variables
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final int slabBytes;
+    private final long staleMs;
+
+
+    //Constructor, allocates every segment's index and slabs up front. The slabs of all segments together never take
+    //more than maxBytes, with a floor of MIN_BYTES: a small budget gets fewer segments and smaller slabs rather than
+    //each segment rounding up to two full-size slabs. The indexes (32 to 64 bytes per entry) come on top.
+    DNSOffHeapCache(int maxEntries, long maxBytes, int slabBytes, long staleMs) {
+        int segmentCount = Integer.highestOneBit(Math.max(4, 4 * Runtime.getRuntime().availableProcessors()) - 1) << 1;
+        segmentCount = (int) Math.max(MIN_SEGMENTS, Math.min(segmentCount, Long.highestOneBit(Math.max(1, maxBytes / (2L * MIN_SLAB_BYTES)))));
+        long segmentBytes = Math.max(2L * MIN_SLAB_BYTES, maxBytes / segmentCount);
+        slabBytes = Math.max(MIN_SLAB_BYTES, Math.min(MAX_SLAB_BYTES, slabBytes));
+        slabBytes = (int) Math.max(slabBytes, Math.min(MAX_SLAB_BYTES, segmentBytes / MAX_SLABS));
+        slabBytes = (int) Math.max(MIN_SLAB_BYTES, Math.min(slabBytes, segmentBytes / 2));
+        int slabCount = (int) Math.max(2, Math.min(MAX_SLABS, segmentBytes / slabBytes));
+
+        this.slabBytes = slabBytes;
+        this.staleMs = staleMs;
+        segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+        segments = new Segment[segmentCount];
+        int perSegment = Math.max(1, (maxEntries + segmentCount - 1) / segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(perSegment, slabCount, slabBytes);
+        }
+    }
+
+
+    //True if a fresh entry is cached. Notes the hit, and hands the question to refresh if it is popular and about to
+    //expire. Expired entries are dropped unless they are still inside the serve-stale window.
+    boolean isInCache(DNSQuestion dnsQuestion, Consumer<DNSQuestion> refresh) {
+        int hash = hash(dnsQuestion);
+        Segment segment = segmentFor(hash);
+        long now = System.currentTimeMillis();
+        boolean prefetch = false;
+        segment.lock.lock();
+        try {
+            int slot = find(segment, hash, dnsQuestion);
+            if (slot < 0) {
+                return false;
+            }
+            int location = (int) segment.index.get(slot);
+            ByteBuffer slab = slab(segment, location);
+            int record = offset(location);
+            long expiresAt = expiresAt(slab, record);
+            if (expiresAt <= now) {
+                if (expiresAt + staleMs <= now) {
+                    removeSlot(segment, slot);
+                    DNSMetrics.cacheExpirations.increment();
+                }
+                return false;
+            }
+
+            byte flags = (byte) (slab.get(record + FLAGS) | HIT);
+            int hits = Math.min(Short.MAX_VALUE, slab.getShort(record + HITS) + 1);
+            slab.putShort(record + HITS, (short) hits);
+            if (refresh != null && (flags & PREFETCHED) == 0
+                    && DNSCache.dueForPrefetch(hits, expiresAt, slab.getInt(record + TTL), now)) {
+                flags |= PREFETCHED;
+                prefetch = true;
+            }
+            slab.put(record + FLAGS, flags);
+        } finally {
+            segment.lock.unlock();
+        }
+        if (prefetch) {
+            refresh.accept(dnsQuestion);
+        }
+        return true;
+    }
+
+    //The cached entry for a question whether it has expired or not, or null. With decode false only the encoded
+    //response is filled in and the sections are left empty, which is all writeResponse needs.
+    DNSCacheEntry get(DNSQuestion dnsQuestion, boolean decode) {
+        int hash = hash(dnsQuestion);
+        Segment segment = segmentFor(hash);
+        DNSCacheEntry entry;
+        segment.lock.lock();
+        try {
+            int slot = find(segment, hash, dnsQuestion);
+            if (slot < 0) {
+                return null;
+            }
+            int location = (int) segment.index.get(slot);
+            entry = copyOut(slab(segment, location), offset(location));
+        } finally {
+            segment.lock.unlock();
+        }
+        readTTLs(entry);
+        if (decode) {
+            try {
+                DNSMessage response = DNSMessage.decodeMessage(entry.wire);
+                entry.answers.addAll(response.dnsAnswers);
+                entry.authorityRecords.addAll(response.dnsAuthorityRecords);
+                entry.additionalRecords.addAll(response.dnsAdditionalRecords);
+            } catch (IOException e) {
+                System.out.println("Corrupt off-heap cache entry for " + dnsQuestion.QNAME + ": " + e.getMessage());
+                return null;
+            }
+        }
+        return entry;
+    }
+
+    //Store an entry, replacing any older one for the question. Returns false if it is too big for a slab.
+    boolean put(DNSQuestion dnsQuestion, DNSCacheEntry entry) {
+        if (entry.wire == null) {
+            try {
+                entry.encode(dnsQuestion);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        int keyLength = dnsQuestion.QNAME.wireLength() + 4;
+        int length = align(HEADER + keyLength + 2 * entry.ttlOffsets.length + entry.wire.length);
+        if (length > slabBytes - SLAB_START || entry.wire.length > 65535) {
+            return false;
+        }
+
+        int hash = hash(dnsQuestion);
+        Segment segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            //Find room first, so a question whose new answer can't be stored keeps its old one. Making room can move
+            //or drop the old record, so it is looked up afterwards.
+            int location = allocate(segment, length);
+            if (location == 0) {
+                return false;
+            }
+            int existing = find(segment, hash, dnsQuestion);
+            if (existing >= 0) {
+                removeSlot(segment, existing);
+            }
+
+            ByteBuffer slab = slab(segment, location);
+            int record = offset(location);
+            slab.putInt(record + LENGTH, length);
+            slab.putInt(record + HASH, hash);
+            slab.putLong(record + CREATED, entry.creationTime.toEpochMilli());
+            slab.putInt(record + TTL, entry.TTL);
+            slab.putShort(record + KEY_LENGTH, (short) keyLength);
+            slab.putShort(record + QUESTION_END, (short) entry.questionEnd);
+            slab.putShort(record + TTL_COUNT, (short) entry.ttlOffsets.length);
+            slab.putShort(record + WIRE_LENGTH, (short) entry.wire.length);
+            slab.put(record + RCODE, entry.RCODE);
+            slab.put(record + FLAGS, (byte) 0);
+            slab.putShort(record + HITS, (short) 0);
+
+            //Key: the name in lower case, then QTYPE and QCLASS
+            int position = record + HEADER;
+            DomainName name = dnsQuestion.QNAME;
+            for (int i = 0; i < name.wireLength(); i++) {
+                slab.put(position++, toLower(name.byteAt(i)));
+            }
+            slab.putShort(position, dnsQuestion.QType);
+            slab.putShort(position + 2, dnsQuestion.QClass);
+            position += 4;
+            for (int ttlOffset : entry.ttlOffsets) {
+                slab.putShort(position, (short) ttlOffset);
+                position += 2;
+            }
+            slab.put(position, entry.wire);
+
+            insertSlot(segment, hash, location);
+        } finally {
+            segment.lock.unlock();
+        }
+        return true;
+    }
+
+    //Hand every stored entry to action, with only its encoded response filled in. A segment's entries are copied out
+    //under its lock and handed over once it is released, so a slow action doesn't hold up lookups.
+    void forEach(Consumer<DNSCacheEntry> action) {
+        for (Segment segment : segments) {
+            ArrayList<DNSCacheEntry> entries = new ArrayList<>();
+            segment.lock.lock();
+            try {
+                for (int slot = 0; slot <= segment.mask; slot++) {
+                    int location = (int) segment.index.get(slot);
+                    if (location != 0) {
+                        entries.add(copyOut(slab(segment, location), offset(location)));
+                    }
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+            for (DNSCacheEntry entry : entries) {
+                readTTLs(entry);
+                action.accept(entry);
+            }
+        }
+    }
+
+    //Number of entries stored, expired ones included until they are dropped
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.count;
+        }
+        return size;
+    }
+
+
+    //Copy a record's encoded response and details into a new entry. Requires the segment's lock.
+    private static DNSCacheEntry copyOut(ByteBuffer slab, int record) {
+        DNSCacheEntry entry = new DNSCacheEntry();
+        entry.creationTime = Instant.ofEpochMilli(slab.getLong(record + CREATED));
+        entry.TTL = slab.getInt(record + TTL);
+        entry.RCODE = slab.get(record + RCODE);
+        entry.questionEnd = slab.getShort(record + QUESTION_END);
+
+        int position = record + HEADER + slab.getShort(record + KEY_LENGTH);
+        int[] ttlOffsets = new int[slab.getShort(record + TTL_COUNT)];
+        for (int i = 0; i < ttlOffsets.length; i++, position += 2) {
+            ttlOffsets[i] = slab.getShort(position) & 0xFFFF;
+        }
+        byte[] wire = new byte[slab.getShort(record + WIRE_LENGTH) & 0xFFFF];
+        slab.get(position, wire);
+        entry.ttlOffsets = ttlOffsets;
+        entry.wire = wire;
+        return entry;
+    }
+
+    //The original TTLs are still in the encoded response
+    private static void readTTLs(DNSCacheEntry entry) {
+        ByteBuffer wire = ByteBuffer.wrap(entry.wire);
+        entry.ttls = new int[entry.ttlOffsets.length];
+        for (int i = 0; i < entry.ttls.length; i++) {
+            entry.ttls[i] = wire.getInt(entry.ttlOffsets[i]);
+        }
+    }
+
+
+    //Find room for a record in the current slab, reclaiming the next slabs in the ring as needed. The first lap
+    //gives entries that were hit a second chance; the second doesn't, so it always ends with enough room.
+    private int allocate(Segment segment, int length) {
+        for (int attempt = 0; attempt <= 2 * segment.slabs.length; attempt++) {
+            int current = segment.current;
+            if (segment.used[current] + length <= slabBytes && segment.count < segment.maxCount) {
+                int location = current << 24 | segment.used[current];
+                segment.used[current] += length;
+                return location;
+            }
+            segment.current = (current + 1) % segment.slabs.length;
+            reclaim(segment, segment.current, attempt < segment.slabs.length);
+        }
+        return 0;
+    }
+
+    //Empty a slab, keeping the live entries that were hit since last time (if secondChance) compacted at its front
+    private void reclaim(Segment segment, int slabIndex, boolean secondChance) {
+        ByteBuffer slab = segment.slabs[slabIndex];
+        long now = System.currentTimeMillis();
+        int end = segment.used[slabIndex];
+        int write = SLAB_START;
+        for (int read = SLAB_START; read < end; ) {
+            int length = slab.getInt(read + LENGTH);
+            int slot = findLocation(segment, slab.getInt(read + HASH), slabIndex << 24 | read);
+            if (slot >= 0) {
+                byte flags = slab.get(read + FLAGS);
+                long expiresAt = expiresAt(slab, read);
+                if (secondChance && (flags & HIT) != 0 && expiresAt > now) {
+                    if (write != read) {
+                        slab.get(read, segment.scratch, 0, length);
+                        slab.put(write, segment.scratch, 0, length);
+                    }
+                    slab.put(write + FLAGS, (byte) (flags & ~HIT));
+                    long hashBits = segment.index.get(slot) & 0xFFFFFFFF00000000L;
+                    segment.index.put(slot, hashBits | ((slabIndex << 24 | write) & 0xFFFFFFFFL));
+                    write += length;
+                } else {
+                    removeSlot(segment, slot);
+                    (expiresAt + staleMs <= now ? DNSMetrics.cacheExpirations : DNSMetrics.cacheEvictions).increment();
+                }
+            }
+            read += length;
+        }
+        segment.used[slabIndex] = write;
+    }
+
+
+    //Index slot holding the question, or -1
+    private int find(Segment segment, int hash, DNSQuestion dnsQuestion) {
+        for (int slot = hash & segment.mask; ; slot = (slot + 1) & segment.mask) {
+            long value = segment.index.get(slot);
+            if (value == 0) {
+                return -1;
+            }
+            if ((int) (value >>> 32) == hash && keyMatches(segment, (int) value, dnsQuestion)) {
+                return slot;
+            }
+        }
+    }
+
+    //Index slot pointing at the record at location, or -1 if it is no longer indexed (replaced or dropped)
+    private int findLocation(Segment segment, int hash, int location) {
+        for (int slot = hash & segment.mask; ; slot = (slot + 1) & segment.mask) {
+            long value = segment.index.get(slot);
+            if (value == 0) {
+                return -1;
+            }
+            if ((int) value == location) {
+                return slot;
+            }
+        }
+    }
+
+    private void insertSlot(Segment segment, int hash, int location) {
+        int slot = hash & segment.mask;
+        while (segment.index.get(slot) != 0) {
+            slot = (slot + 1) & segment.mask;
+        }
+        segment.index.put(slot, (long) hash << 32 | (location & 0xFFFFFFFFL));
+        segment.count++;
+    }
+
+    //Empty a slot and shift later entries of the same probe run back into it, so lookups never need tombstones.
+    //The record itself stays in its slab as dead space until the slab is reclaimed.
+    private void removeSlot(Segment segment, int slot) {
+        int hole = slot;
+        for (int next = (hole + 1) & segment.mask; ; next = (next + 1) & segment.mask) {
+            long value = segment.index.get(next);
+            if (value == 0) {
+                break;
+            }
+            //Move the entry back unless its home slot lies cyclically after the hole, up to where it is now
+            int home = (int) (value >>> 32) & segment.mask;
+            if (((next - home) & segment.mask) >= ((next - hole) & segment.mask)) {
+                segment.index.put(hole, value);
+                hole = next;
+            }
+        }
+        segment.index.put(hole, 0);
+        segment.count--;
+    }
+
+    //Compare a stored key with a question: the name case-insensitively, then QTYPE and QCLASS
+    private boolean keyMatches(Segment segment, int location, DNSQuestion dnsQuestion) {
+        ByteBuffer slab = slab(segment, location);
+        int record = offset(location);
+        DomainName name = dnsQuestion.QNAME;
+        int nameLength = name.wireLength();
+        if (slab.getShort(record + KEY_LENGTH) != nameLength + 4) {
+            return false;
+        }
+        int key = record + HEADER;
+        for (int i = 0; i < nameLength; i++) {
+            if (slab.get(key + i) != toLower(name.byteAt(i))) {
+                return false;
+            }
+        }
+        return slab.getShort(key + nameLength) == dnsQuestion.QType && slab.getShort(key + nameLength + 2) == dnsQuestion.QClass;
+    }
+
+
+    //Spread the question's hash so both the segment (high bits) and the slot (low bits) are well mixed
+    private static int hash(DNSQuestion dnsQuestion) {
+        int hash = dnsQuestion.hashCode() * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash >>> segmentShift];
+    }
+
+    private static ByteBuffer slab(Segment segment, int location) {
+        return segment.slabs[location >>> 24];
+    }
+
+    private static int offset(int location) {
+        return location & 0xFFFFFF;
+    }
+
+    private static long expiresAt(ByteBuffer slab, int record) {
+        return slab.getLong(record + CREATED) + slab.getInt(record + TTL) * 1000L;
+    }
+
+    private static int align(int length) {
+        return (length + 7) & ~7;
+    }
+
+    private static byte toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + 32) : b;
+    }
+
+
+    //IDE generated toString method. Useful for debugging
+    @Override
+    public String toString() {
+        return "DNSOffHeapCache{" +
+                "segments=" + segments.length +
+                ", slabs=" + segments[0].slabs.length +
+                ", slabBytes=" + slabBytes +
+                ", size=" + size() +
+                '}';
+    }
+
+}
@@ -0,0 +1,304 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+//Optional log of every query answered: when, who asked, the question, the RCODE, how long it took and whether it came
+//from the cache. Turned on with dns.querylog=<file>.
+//Serving threads never wait on the log. Each answer is written into a fixed-size slot of a ring buffer in direct
+//memory: a thread claims the next sequence number with a compare-and-set, fills in its slot, then publishes it by
+//storing the sequence in the slot's entry of an AtomicLongArray. If the writer has fallen a whole ring behind, the
+//entry is dropped and counted instead of blocking. A single background thread copies published slots, in order, into
+//a file buffer and writes it out in batches. When the file reaches dns.querylog.max bytes it is rotated: <file>
+//becomes <file>.1, <file>.1 becomes <file>.2 and so on, keeping dns.querylog.files files in all. A log left by an
+//earlier run is rotated the same way at startup rather than overwritten.
+//Only the writer thread touches the file; at shutdown it writes out what is left and closes it itself.
+//The file is binary: "DNSQ" and a version, then one record per answer:
+//  time (epoch milliseconds, 8 bytes), latency (microseconds, 4), client address length (1) and address (4 or 16),
+//  client port (2), QTYPE (2), QCLASS (2), RCODE (1), flags (1: 1 cache hit, 2 TCP, 4 truncated), name length (1),
+//  name (uncompressed wire format)
+public class DNSQueryLog implements Runnable {
+
+    //Flags
+    static final int CACHED = 1;
+    static final int TCP = 2;
+    static final int TRUNCATED = 4;
+
+    //Slot layout
+    private static final int SLOT = 320;
+    private static final int TIME = 0;              //long
+    private static final int LATENCY = 8;           //int
+    private static final int PORT = 12;             //short
+    private static final int ADDRESS_LENGTH = 14;   //byte
+    private static final int FLAGS = 15;            //byte
+    private static final int RCODE = 16;            //byte
+    private static final int QTYPE = 18;            //short
+    private static final int QCLASS = 20;           //short
+    private static final int NAME_LENGTH = 22;      //short, SKIP until the entry is complete
+    private static final int ADDRESS = 24;          //16 bytes
+    private static final int NAME = 40;             //Up to 255 bytes
+
+    //Name length of an entry that was never completed, which the writer passes over
+    private static final short SKIP = -1;
+
+    //File header
+    private static final int MAGIC = 0x444E5351;    //"DNSQ"
+    private static final short VERSION = 1;
+
+    //Member Variables
+    private final Path path;
+    private final ByteBuffer ring;
+    private final AtomicLongArray published;        //Sequence + 1 of what each slot holds, once it is written
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+    private volatile boolean running = true;
+    private final Thread writer;
+
+    //Only touched by the writer thread
+    private final ByteBuffer out = ByteBuffer.allocate(256 * 1024);
+    private FileChannel channel;
+    private long fileSize;
+
+
+    //Constructor, opens the log file and starts the writer thread
+    DNSQueryLog(Path path) throws IOException {
+        this.path = path;
+        int slots = Integer.highestOneBit(Math.max(1024, DNSConfig.QUERY_LOG_BUFFER) - 1) << 1;
+        ring = ByteBuffer.allocateDirect(slots * SLOT);
+        published = new AtomicLongArray(slots);
+        mask = slots - 1;
+        if (Files.exists(path) && Files.size(path) > 0) {
+            shiftFiles();
+        }
+        open();
+
+        writer = new Thread(this, "dns-querylog");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "dns-querylog-final"));
+    }
+
+
+    //Log an answer written straight from the cache. The question is read from the request packet.
+    void record(DNSRequest request, DNSMessageView query, ByteBuffer reply, boolean cached) throws IOException {
+        int nameLength = query.questionEnd() - 4 - 12;
+        long sequence = claim();
+        if (sequence < 0) {
+            return;
+        }
+        int slot = slotOffset(sequence);
+        try {
+            fill(slot, request, reply, cached);
+            ring.putShort(slot + QTYPE, query.buffer.getShort(12 + nameLength));
+            ring.putShort(slot + QCLASS, query.buffer.getShort(14 + nameLength));
+            ring.put(slot + NAME, query.buffer, 12, nameLength);
+            ring.putShort(slot + NAME_LENGTH, (short) nameLength);
+        } finally {
+            publish(sequence);
+        }
+    }
+
+    //Log an answer built from decoded records
+    void record(DNSRequest request, DNSQuestion dnsQuestion, ByteBuffer reply, boolean cached) {
+        long sequence = claim();
+        if (sequence < 0) {
+            return;
+        }
+        int slot = slotOffset(sequence);
+        try {
+            fill(slot, request, reply, cached);
+            DomainName name = dnsQuestion.QNAME;
+            ring.putShort(slot + QTYPE, dnsQuestion.QType);
+            ring.putShort(slot + QCLASS, dnsQuestion.QClass);
+            for (int i = 0; i < name.wireLength(); i++) {
+                ring.put(slot + NAME + i, name.byteAt(i));
+            }
+            ring.putShort(slot + NAME_LENGTH, (short) name.wireLength());
+        } finally {
+            publish(sequence);
+        }
+    }
+
+    //Claim the next slot, or return -1 (and count the loss) if the writer is a whole ring behind. The slot starts out
+    //marked SKIP, and the entry's name length is the last thing written, so an entry whose writer failed part way is
+    //still published (the writer can't wait on it forever) but passed over.
+    private long claim() {
+        while (true) {
+            long sequence = claimed.get();
+            if (sequence - consumed > mask) {
+                DNSMetrics.queryLogDropped.increment();
+                return -1;
+            }
+            if (claimed.compareAndSet(sequence, sequence + 1)) {
+                ring.putShort(slotOffset(sequence) + NAME_LENGTH, SKIP);
+                return sequence;
+            }
+        }
+    }
+
+    //The fields every entry has: time, latency, client, RCODE and flags (the last two read from the reply's header)
+    private void fill(int slot, DNSRequest request, ByteBuffer reply, boolean cached) {
+        ring.putLong(slot + TIME, System.currentTimeMillis());
+        ring.putInt(slot + LATENCY, (int) Math.min(Integer.MAX_VALUE, (System.nanoTime() - request.received) / 1000));
+        InetSocketAddress client = (InetSocketAddress) request.client;
+        byte[] address = client.getAddress().getAddress();
+        ring.put(slot + ADDRESS_LENGTH, (byte) address.length);
+        ring.put(slot + ADDRESS, address);
+        ring.putShort(slot + PORT, (short) client.getPort());
+        ring.put(slot + RCODE, (byte) (reply.get(3) & 0x0F));
+        int flags = (cached ? CACHED : 0) | (request.connection != null ? TCP : 0) | ((reply.get(2) & 0x02) != 0 ? TRUNCATED : 0);
+        ring.put(slot + FLAGS, (byte) flags);
+    }
+
+    private void publish(long sequence) {
+        published.set((int) (sequence & mask), sequence + 1);
+    }
+
+    private int slotOffset(long sequence) {
+        return (int) (sequence & mask) * SLOT;
+    }
+
+
+    //Writer loop: copy published entries to the file in order, and flush whenever there is nothing new. Once stopped,
+    //write out whatever is left and close the file.
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                if (drain() == 0) {
+                    flush();
+                    LockSupport.parkNanos(1_000_000);
+                }
+            } catch (IOException e) {
+                System.out.println("Query log write failed: " + e.getMessage());
+                LockSupport.parkNanos(1_000_000_000);
+            }
+        }
+        try {
+            drain();
+            flush();
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Query log write failed: " + e.getMessage());
+        }
+    }
+
+    //Copy every entry that is ready into the file buffer. Returns how many there were.
+    private int drain() throws IOException {
+        int count = 0;
+        long next = consumed;
+        while (published.get((int) (next & mask)) == next + 1) {
+            if (out.remaining() < SLOT) {
+                flush();
+            }
+            int slot = slotOffset(next);
+            int addressLength = ring.get(slot + ADDRESS_LENGTH);
+            int nameLength = ring.getShort(slot + NAME_LENGTH);
+            if (nameLength == SKIP) {
+                consumed = ++next;
+                continue;
+            }
+            out.putLong(ring.getLong(slot + TIME));
+            out.putInt(ring.getInt(slot + LATENCY));
+            out.put((byte) addressLength);
+            out.put(out.position(), ring, slot + ADDRESS, addressLength).position(out.position() + addressLength);
+            out.putShort(ring.getShort(slot + PORT));
+            out.putShort(ring.getShort(slot + QTYPE));
+            out.putShort(ring.getShort(slot + QCLASS));
+            out.put(ring.get(slot + RCODE));
+            out.put(ring.get(slot + FLAGS));
+            out.put((byte) nameLength);
+            out.put(out.position(), ring, slot + NAME, nameLength).position(out.position() + nameLength);
+
+            //Hand the slot back to the producers
+            consumed = ++next;
+            count++;
+        }
+        return count;
+    }
+
+    //Write the file buffer out, rotating the file first if it has grown too big
+    private void flush() throws IOException {
+        if (out.position() == 0) {
+            return;
+        }
+        if (fileSize + out.position() > DNSConfig.QUERY_LOG_MAX_BYTES) {
+            rotate();
+        }
+        out.flip();
+        while (out.hasRemaining()) {
+            fileSize += channel.write(out);
+        }
+        out.clear();
+    }
+
+    //Close the file, move it and the older ones along, and start a new one
+    private void rotate() throws IOException {
+        channel.close();
+        shiftFiles();
+        open();
+    }
+
+    //Rename <file> to <file>.1, <file>.1 to <file>.2 and so on, dropping the oldest
+    private void shiftFiles() throws IOException {
+        int files = Math.max(1, DNSConfig.QUERY_LOG_FILES);
+        Files.deleteIfExists(numbered(files - 1));
+        for (int i = files - 2; i >= 0; i--) {
+            if (Files.exists(numbered(i))) {
+                Files.move(numbered(i), numbered(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    private Path numbered(int i) {
+        return i == 0 ? path : path.resolveSibling(path.getFileName() + "." + i);
+    }
+
+    //Start a new file with its header
+    private void open() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(6).putInt(MAGIC).putShort(VERSION).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        fileSize = header.position();
+    }
+
+
+    //Stop the writer and give it a few seconds to write out whatever is left. The file is only ever touched by the
+    //writer thread, so if it is still busy when the wait runs out it is left to finish on its own.
+    synchronized void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) {
+            System.out.println("Query log writer is still flushing; the last entries may be lost");
+        }
+    }
+
+    //IDE generated toString method. Useful for debugging
+    @Override
+    public String toString() {
+        return "DNSQueryLog{" +
+                "path=" + path +
+                ", pending=" + (claimed.get() - consumed) +
+                ", dropped=" + DNSMetrics.queryLogDropped.sum() +
+                '}';
+    }
+
+}
@@ -1,43 +1,41 @@
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Objects;
+import java.nio.ByteBuffer;
 
 //This class represents a client request.
 public class DNSQuestion {
 
     //Member Variables
-    ArrayList<String> QNAME;
-    byte[] QType;
-    byte[] QClass;
+    DomainName QNAME;
+    short QType;
+    short QClass;
 
 
-    //Read a question from the input stream. Due to compression, you may have to ask the DNSMessage containing
-    //this question to read some of the fields.
-    static DNSQuestion decodeQuestion(InputStream inputStream, DNSMessage dnsMessage) throws IOException {
+    //Read the question that starts at offset in the message buffer. Due to compression, the name may point to an
+    //earlier part of the same buffer.
+    static DNSQuestion decodeQuestion(ByteBuffer buffer, int offset) throws IOException {
         //Create new DNSQuestion Object
         DNSQuestion dnsQuestion = new DNSQuestion();
-        dnsQuestion.QNAME = dnsMessage.readDomainName(inputStream);
-        dnsQuestion.QType = inputStream.readNBytes(2);
-        dnsQuestion.QClass = inputStream.readNBytes(2);
+        dnsQuestion.QNAME = DomainName.fromWire(buffer, offset);
+
+        //QTYPE and QCLASS follow the name where it sits in the question
+        int fields = DNSMessage.skipDomainName(buffer, offset);
+        dnsQuestion.QType = buffer.getShort(fields);
+        dnsQuestion.QClass = buffer.getShort(fields + 2);
 
         return dnsQuestion;
     }
 
 
-    //Write the question bytes which will be sent to the client. The hash map is used for us to compress the message,
-    //See the DNSMessage class below.
-    void writeBytes(ByteArrayOutputStream byteArrayOutputStream, HashMap<String,Integer> domainNameLocations) throws IOException {
+    //Write the question bytes which will be sent to the client. The compression table is used for us to compress
+    //the message, see DNSCompressionTable.
+    void writeBytes(ByteBuffer buffer, DNSCompressionTable compressionTable) {
 
-        //Use writeDomainName method to write name (or compression scheme) to output stream
-        DNSMessage.writeDomainName(byteArrayOutputStream, domainNameLocations, this.QNAME);
+        //Write name (or compression scheme) to the buffer
+        compressionTable.writeName(buffer, this.QNAME);
 
-        //Write Qtype and Qclass to output stream
-        byteArrayOutputStream.write(QType);
-        byteArrayOutputStream.write(QClass);
+        //Write Qtype and Qclass to the buffer
+        buffer.putShort(QType);
+        buffer.putShort(QClass);
 
     }
 
@@ -46,26 +44,27 @@ public class DNSQuestion {
     @Override
     public String toString() {
         return "DNSQuestion{" +
-                "QType=" + Arrays.toString(QType) +
-                ", QClass=" + Arrays.toString(QClass) +
+                "QType=" + QType +
+                ", QClass=" + QClass +
                 ", domainNames=" + QNAME +
                 '}';
     }
 
-    //These methods override default methods used in the hashmap, that they are used implicitly
+    //These methods override default methods used in the hashmap, that they are used implicitly. The name compares
+    //case-insensitively and has its hash cached, so a lookup costs one array compare.
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         DNSQuestion that = (DNSQuestion) o;
-        return Objects.equals(QNAME, that.QNAME) && Arrays.equals(QType, that.QType) && Arrays.equals(QClass, that.QClass);
+        return QType == that.QType && QClass == that.QClass && QNAME.equals(that.QNAME);
     }
 
     @Override
     public int hashCode() {
-        int result = Objects.hash(QNAME);
-        result = 31 * result + Arrays.hashCode(QType);
-        result = 31 * result + Arrays.hashCode(QClass);
+        int result = QNAME.hashCode();
+        result = 31 * result + QType;
+        result = 31 * result + QClass;
         return result;
     }
 
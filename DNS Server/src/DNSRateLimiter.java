@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+//Response rate limiting (RRL) for UDP, turned on with dns.rrl.rate. UDP source addresses can be forged, so without it
+//one client, or a reflection attack aimed at a victim through us, can have the server answer the same question as fast
+//as packets arrive. Each client prefix (a /24 or a /56 by default) and question gets a token bucket allowing
+//dns.rrl.rate answers per second with bursts of up to dns.rrl.burst. A query over the limit is dropped before any
+//cache or upstream work, except that every dns.rrl.slip-th one is answered with an empty truncated reply: a real
+//client retries over TCP, which can't be forged, while a forged flood gets nothing bigger than it sent.
+//Each bucket is stored as a single time, when it will next be full (GCRA), so updating one is a compare and an add.
+//The buckets live in a fixed table split into stripes by hash, each with its own lock. A key can go in any of 4 slots
+//of its set; a new key takes the slot of the bucket that has been idle longest, which a full bucket loses nothing by
+//giving up, so memory is bounded however many clients there are.
+public class DNSRateLimiter {
+
+    //What to do with a query
+    static final int ALLOW = 0;
+    static final int DROP = 1;
+    static final int SLIP = 2;
+
+    //Slots each key can go in
+    private static final int WAYS = 4;
+
+    //One independently locked part of the table
+    private static final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final long[] keys;              //Hash of the prefix and question, 0 if empty
+        final long[] full;              //When each bucket is back to full, in nanoseconds since the limiter started
+        int overLimit;                  //Queries over the limit, for choosing which ones slip
+
+        Stripe(int slots) {
+            keys = new long[slots];
+            full = new long[slots];
+        }
+    }
+
+    //Member Variables
+    private final Stripe[] stripes;
+    private final int stripeShift;
+    private final int setMask;
+    private final long interval;        //Nanoseconds per token
+    private final long capacity;        //Nanoseconds it takes to fill an empty bucket
+    private final int slip;
+    private final long ipv4Mask;
+    private final int ipv6Prefix;
+    private final long started = System.nanoTime();
+
+
+    //Constructor, allocates the whole table up front
+    DNSRateLimiter(int rate, int burst, int slip, int entries, int ipv4Prefix, int ipv6Prefix) {
+        int stripeCount = Integer.highestOneBit(Math.max(4, 4 * Runtime.getRuntime().availableProcessors()) - 1) << 1;
+        int sets = Integer.highestOneBit(Math.max(1, entries / (stripeCount * WAYS)) * 2 - 1);
+        stripeShift = 64 - Integer.numberOfTrailingZeros(stripeCount);
+        setMask = sets - 1;
+        stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe(sets * WAYS);
+        }
+
+        interval = 1_000_000_000L / Math.max(1, rate);
+        capacity = interval * Math.max(1, burst);
+        this.slip = Math.max(0, slip);
+        ipv4Mask = 0xFFFFFFFFL << (32 - Math.max(0, Math.min(32, ipv4Prefix))) & 0xFFFFFFFFL;
+        this.ipv6Prefix = Math.max(0, Math.min(128, ipv6Prefix));
+    }
+
+
+    //Take a token from the bucket for this client's prefix and question. Returns ALLOW, or DROP or SLIP when the
+    //bucket is empty.
+    int check(SocketAddress client, DNSMessageView view) throws IOException {
+        long key = key(client, view);
+        Stripe stripe = stripes[(int) (key >>> stripeShift)];
+        int set = ((int) key & setMask) * WAYS;
+        long now = System.nanoTime() - started;
+
+        stripe.lock.lock();
+        try {
+            //Find the key's bucket, or the slot it will take over
+            int slot = set;
+            for (int i = set; i < set + WAYS; i++) {
+                if (stripe.keys[i] == key) {
+                    slot = i;
+                    break;
+                }
+                if (stripe.full[i] < stripe.full[slot]) {
+                    slot = i;
+                }
+            }
+            if (stripe.keys[slot] != key) {
+                stripe.keys[slot] = key;
+                stripe.full[slot] = now;
+            }
+
+            //Taking a token pushes the time the bucket is full back by one interval, and an empty bucket is one whose
+            //full time is a whole capacity away
+            long full = Math.max(stripe.full[slot], now) + interval;
+            if (full - now <= capacity) {
+                stripe.full[slot] = full;
+                return ALLOW;
+            }
+            stripe.overLimit++;
+            if (slip > 0 && stripe.overLimit % slip == 0) {
+                DNSMetrics.rateLimitSlipped.increment();
+                return SLIP;
+            }
+            DNSMetrics.rateLimitDropped.increment();
+            return DROP;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    //Write an empty truncated reply to the query: its header and questions, with no records
+    static void writeTruncated(ByteBuffer out, DNSMessageView query) throws IOException {
+        int questionEnd = query.questionEnd();
+        out.put(0, query.buffer, 0, questionEnd).position(questionEnd);
+        out.put(2, (byte) ((query.buffer.get(2) & 0x79) | 0x82));   //QR and TC, keeping OPCODE and RD
+        out.put(3, (byte) 0x80);                                   //RA, RCODE 0
+        out.putShort(6, (short) 0);
+        out.putShort(8, (short) 0);
+        out.putShort(10, (short) 0);
+    }
+
+
+    //Hash of the client's prefix, the QNAME (case-insensitive) and QTYPE
+    private long key(SocketAddress client, DNSMessageView view) throws IOException {
+        long hash = 0xCBF29CE484222325L;
+        InetAddress address = ((InetSocketAddress) client).getAddress();
+        if (address instanceof Inet4Address) {
+            //An IPv4 address's hash code is the address itself
+            hash = mix(hash, (int) (address.hashCode() & ipv4Mask));
+        } else {
+            byte[] bytes = address.getAddress();
+            for (int i = 0, bits = ipv6Prefix; i < bytes.length && bits > 0; i++, bits -= 8) {
+                hash = mix(hash, bytes[i] & (0xFF << (8 - Math.min(8, bits))));
+            }
+        }
+
+        if (view.questionCount() > 0) {
+            int questionEnd = view.questionOffset(1);
+            ByteBuffer buffer = view.buffer;
+            for (int i = 12; i < questionEnd - 4; i++) {
+                byte b = buffer.get(i);
+                hash = mix(hash, b >= 'A' && b <= 'Z' ? b + 32 : b);
+            }
+            hash = mix(hash, buffer.getShort(questionEnd - 4));
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        return hash == 0 ? 1 : hash;
+    }
+
+    //One FNV-1a step
+    private static long mix(long hash, int value) {
+        return (hash ^ value) * 0x100000001B3L;
+    }
+
+
+    //IDE generated toString method. Useful for debugging
+    @Override
+    public String toString() {
+        return "DNSRateLimiter{" +
+                "stripes=" + stripes.length +
+                ", slots=" + stripes.length * stripes[0].keys.length +
+                ", perSecond=" + 1_000_000_000L / interval +
+                ", burst=" + capacity / interval +
+                ", slip=" + slip +
+                '}';
+    }
+
+}
@@ -1,10 +1,7 @@
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.time.Instant;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 
 //Everything after the header and question parts of the DNS message are stored as records. This should have all
 // the fields listed in the spec as well as a Date object storing when this record was created.
@@ -14,7 +11,7 @@ public class DNSRecord {
     Instant creationTime;
 
     //Required Member Variables per the spec
-    ArrayList<String> NAME;
+    DomainName NAME;
     short TYPE;
     short CLASS;
     int TTL;
@@ -22,64 +19,37 @@ public class DNSRecord {
     byte[] RDATA;
 
 
-    //Decode the record
-    static DNSRecord decodeRecord(InputStream inputStream, DNSMessage dnsMessage) throws IOException {
+    //Decode the record that starts at offset in the message buffer
+    static DNSRecord decodeRecord(ByteBuffer buffer, int offset) throws IOException {
 
         //New instance of DNSRecord
         DNSRecord dnsRecord = new DNSRecord();
 
-        //Temp byte array
-        byte[] bytes;
+        //Get NAME, following compression pointers inside the same buffer
+        dnsRecord.NAME = DomainName.fromWire(buffer, offset);
 
-        //Mark the current location in the input stream
-        inputStream.mark(2);
-
-        //Get NAME if compressed...
-        bytes = inputStream.readNBytes(2);
-
-        //If the first two bits are set...
-        if ((bytes[0] & 0xC0) == 0xC0){
-
-            //Get the offset
-            int nameOffset = (((bytes[0] & 0x3F) << 8) | (bytes[1] & 0xFF));
-
-            //Call the read domain method using the offset
-            dnsRecord.NAME = dnsMessage.readDomainName(nameOffset);
-        }
-        //If not compressed...
-        else{
-            //Reset the input stream to the original position
-            inputStream.reset();
-
-            //Call the read domain method without compression
-            dnsRecord.NAME = dnsMessage.readDomainName(inputStream);
-        }
+        //The fixed fields start right after the name as it appears here
+        int position = DNSMessage.skipDomainName(buffer, offset);
 
         //Get TYPE
-        bytes = inputStream.readNBytes(2);
-        dnsRecord.TYPE = (short)((bytes[0] << 8) | (bytes[1] & 0xFF));
+        dnsRecord.TYPE = buffer.getShort(position);
 //        System.out.println("DNS Record TYPE: " + String.format("%x", dnsRecord.TYPE));
 
         //Get CLASS
-        bytes = inputStream.readNBytes(2);
-        dnsRecord.CLASS = (short)((bytes[0] << 8) | (bytes[1] & 0xFF));
+        dnsRecord.CLASS = buffer.getShort(position + 2);
 //        System.out.println("DNS Record CLASS: " + String.format("%x", dnsRecord.CLASS));
 
         //Get TTL
-        bytes = inputStream.readNBytes(4);
-        dnsRecord.TTL = bytes[0] << 24;
-        dnsRecord.TTL = dnsRecord.TTL | ((bytes[1] & 0xFF) << 16);
-        dnsRecord.TTL = dnsRecord.TTL | ((bytes[2] & 0xFF) << 8);
-        dnsRecord.TTL = dnsRecord.TTL | (bytes[3] & 0xFF);
+        dnsRecord.TTL = buffer.getInt(position + 4);
 //        System.out.println("DNS Record TTL: " + String.format("%x", dnsRecord.TTL));
 
         //Get RDLENGTH
-        bytes = inputStream.readNBytes(2);
-        dnsRecord.RDLENGTH = (short)((bytes[0] << 8) | (bytes[1] & 0xFF));
+        dnsRecord.RDLENGTH = buffer.getShort(position + 8);
 //        System.out.println("DNS Record RDLENGTH: " + String.format("%x", dnsRecord.RDLENGTH));
 
         //Get RDATA, array of bytes. No bit shifting
-        dnsRecord.RDATA = inputStream.readNBytes(dnsRecord.RDLENGTH);
+        dnsRecord.RDATA = readRDATA(buffer, position + 10, dnsRecord.RDLENGTH & 0xFFFF, dnsRecord.TYPE);
+        dnsRecord.RDLENGTH = (short) dnsRecord.RDATA.length;
 //        System.out.println("DNS Record RDATA: " + Arrays.toString(dnsRecord.RDATA) + "\n");
 
         //Set time of record creation
@@ -88,19 +58,65 @@ public class DNSRecord {
         return dnsRecord;
     }
 
+
+    //Copy the RDATA out of the buffer. Record types whose data holds domain names (NS, CNAME, PTR, MX, SOA, SRV) may
+    //use compression pointers into the message they came in, which would point at the wrong bytes once the record is
+    //written into a different message, so those names are expanded to their full uncompressed form.
+    private static byte[] readRDATA(ByteBuffer buffer, int offset, int length, short type) throws IOException {
+        int prefix;         //Fixed bytes before the first name
+        int names;          //How many names follow
+        switch (type) {
+            case 2: case 5: case 12: prefix = 0; names = 1; break;     //NS, CNAME, PTR
+            case 15: prefix = 2; names = 1; break;                     //MX: preference, exchange
+            case 6: prefix = 0; names = 2; break;                      //SOA: mname, rname, then 20 bytes
+            case 33: prefix = 6; names = 1; break;                     //SRV: priority, weight, port, target
+            default:
+                byte[] rdata = new byte[length];
+                buffer.get(offset, rdata);
+                return rdata;
+        }
+
+        ByteBuffer expanded = ByteBuffer.allocate(length + names * DomainName.MAX_LENGTH);
+        int position = offset;
+        for (int i = 0; i < prefix; i++) {
+            expanded.put(buffer.get(position++));
+        }
+        for (int i = 0; i < names; i++) {
+            DomainName.fromWire(buffer, position).writeTo(expanded);
+            position = DNSMessage.skipDomainName(buffer, position);
+        }
+        for (; position < offset + length; position++) {
+            expanded.put(buffer.get(position));
+        }
+        return Arrays.copyOf(expanded.array(), expanded.position());
+    }
+
     //Write out all record parts
-    void writeBytes(ByteArrayOutputStream byteArrayOutputStream, HashMap<String, Integer> domainNameLocations) throws IOException {
+    void writeBytes(ByteBuffer buffer, DNSCompressionTable compressionTable) {
 
-        //Use writeDomainName method to write name (or compression scheme) to output stream
-        DNSMessage.writeDomainName(byteArrayOutputStream, domainNameLocations, this.NAME);
+        //Write name (or compression scheme) to the buffer
+        compressionTable.writeName(buffer, this.NAME);
 
-        //Write each of the remaining DNSRecord sections to the output stream
-        byteArrayOutputStream.write(DNSMessage.shortToBytes(this.TYPE));
-        byteArrayOutputStream.write(DNSMessage.shortToBytes(this.CLASS));
-        byteArrayOutputStream.write(DNSMessage.intToBytes(this.TTL));
-        byteArrayOutputStream.write(DNSMessage.shortToBytes(this.RDLENGTH));
-        byteArrayOutputStream.write(this.RDATA);
+        //Write each of the remaining DNSRecord sections to the buffer
+        buffer.putShort(this.TYPE);
+        buffer.putShort(this.CLASS);
+        buffer.putInt(this.TTL);
+        buffer.putShort(this.RDLENGTH);
+        buffer.put(this.RDATA);
+
+    }
 
+    //Copy of this record with a different TTL, used to hand out the remaining lifetime of a cached record
+    DNSRecord withTTL(int ttl) {
+        DNSRecord copy = new DNSRecord();
+        copy.creationTime = creationTime;
+        copy.NAME = NAME;
+        copy.TYPE = TYPE;
+        copy.CLASS = CLASS;
+        copy.TTL = ttl;
+        copy.RDLENGTH = RDLENGTH;
+        copy.RDATA = RDATA;
+        return copy;
     }
 
     //IDE generated toString method. Useful for debugging
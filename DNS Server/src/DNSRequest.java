@@ -0,0 +1,63 @@
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+//Everything the server needs to remember about one client request while it is being worked on. Each request owns
+//the pooled buffer its packet was received into, along with the sender's address, so several requests can be resolved
+//at the same time. The buffer goes back to the pool as soon as the request has been decoded or answered.
+public class DNSRequest {
+
+    //Member Variables
+    ByteBuffer packet;              //The raw request bytes from index 0 to the limit, borrowed from the pool until released
+    SocketAddress client;           //Who sent the request, and where the reply goes
+    DNSUdpListener listener;        //The listening socket it arrived on, which the reply is sent from (UDP)
+    DNSTcpConnection connection;    //The connection it arrived on, which the reply is queued on (TCP)
+    int replyLimit = DNSConfig.MAX_UDP_SIZE;   //Biggest reply that may go back over UDP, from the client's EDNS size
+    final long received = System.nanoTime();   //When it was read, for the total latency
+    private DNSBufferPool pool;
+
+
+    //Take over a flipped receive buffer. The caller must not touch the buffer again.
+    static DNSRequest fromBuffer(ByteBuffer packet, SocketAddress client, DNSUdpListener listener, DNSBufferPool pool) {
+        DNSRequest dnsRequest = new DNSRequest();
+        dnsRequest.packet = packet;
+        dnsRequest.client = client;
+        dnsRequest.listener = listener;
+        dnsRequest.pool = pool;
+        return dnsRequest;
+    }
+
+    //A query read off a TCP connection. The buffer isn't pooled.
+    static DNSRequest fromConnection(ByteBuffer packet, DNSTcpConnection connection) {
+        DNSRequest dnsRequest = new DNSRequest();
+        dnsRequest.packet = packet;
+        dnsRequest.client = connection.client;
+        dnsRequest.connection = connection;
+        return dnsRequest;
+    }
+
+    //A view over the packet, for reading it in place
+    DNSMessageView view() {
+        return DNSMessageView.wrap(packet);
+    }
+
+    //Hand the packet buffer back to the pool. Safe to call more than once.
+    void release() {
+        if (packet != null) {
+            if (pool != null) {
+                pool.release(packet);
+            }
+            packet = null;
+        }
+    }
+
+    //IDE generated toString method. Useful for debugging
+    @Override
+    public String toString() {
+        return "DNSRequest{" +
+                "client=" + client +
+                ", tcp=" + (connection != null) +
+                ", length=" + (packet == null ? 0 : packet.limit()) +
+                '}';
+    }
+
+}
@@ -0,0 +1,251 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Works out the answer to a request one question at a time. Questions found in DNSCache are answered straight away,
+//and only the missing ones are sent upstream, each as its own single-question query. If several clients ask for the
+//same uncached question at once they all wait on the one upstream lookup already in flight (single-flight), so a burst
+//of identical misses costs one upstream query instead of one per client. The cache also asks for popular entries to be
+//prefetched shortly before they expire, which goes through the same single-flight path. With serve-stale on, a miss on
+//a recently expired entry falls back to that entry if upstream fails or is too slow.
+public class DNSResolver {
+
+    //Member Variables
+    private final DNSForwarder forwarder;
+    private final Executor executor;
+
+    //When the last stale answer was given (epoch milliseconds)
+    private static final AtomicLong lastStaleAnswer = new AtomicLong();
+
+    //Upstream lookups in progress, by question
+    private final ConcurrentHashMap<DNSQuestion, CompletableFuture<DNSCacheEntry>> inFlight = new ConcurrentHashMap<>();
+
+
+    //Constructor. Upstream replies are decoded and cached on the executor, never on the forwarder's selector thread,
+    //unless the executor rejects them: they finish requests that have already been taken on, so they are never dropped
+    //and run on the thread that handed them over instead. The same goes for serve-stale timers.
+    DNSResolver(DNSForwarder forwarder, Executor executor) {
+        this.forwarder = forwarder;
+        this.executor = task -> {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+        };
+    }
+
+
+    //Resolve every question in the request. The future is already complete when everything was cached.
+    CompletableFuture<DNSMessage> resolve(DNSMessage request) {
+        ArrayList<CompletableFuture<DNSCacheEntry>> lookups = new ArrayList<>();
+        for (DNSQuestion dnsQuestion : request.dnsQuestions) {
+            lookups.add(lookup(dnsQuestion));
+        }
+
+        return CompletableFuture.allOf(lookups.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            ArrayList<DNSCacheEntry> entries = new ArrayList<>();
+            for (CompletableFuture<DNSCacheEntry> lookup : lookups) {
+                entries.add(lookup.join());
+            }
+            return buildResponse(request, entries);
+        });
+    }
+
+
+    //Resolve the request only if it can be answered without going upstream: every question is cached, or, with
+    //serve-stale, was until recently. Returns null otherwise, having asked upstream for nothing. Used when the server
+    //is too busy to take on misses.
+    CompletableFuture<DNSMessage> resolveCached(DNSMessage request) {
+        ArrayList<DNSCacheEntry> entries = new ArrayList<>();
+        for (DNSQuestion dnsQuestion : request.dnsQuestions) {
+            DNSCacheEntry entry = cached(dnsQuestion);
+            if (entry == null && DNSConfig.CACHE_STALE_SECONDS > 0) {
+                entry = DNSCache.getStale(dnsQuestion);
+                if (entry != null) {
+                    servedStale();
+                    entry = entry.asStale(DNSConfig.CACHE_STALE_TTL);
+                }
+            }
+            if (entry == null) {
+                return null;
+            }
+            entries.add(entry);
+        }
+        return CompletableFuture.completedFuture(buildResponse(request, entries));
+    }
+
+
+    //Answer one question from the cache, by joining a lookup already in flight, or by starting a new one
+    CompletableFuture<DNSCacheEntry> lookup(DNSQuestion dnsQuestion) {
+        DNSCacheEntry cached = cached(dnsQuestion);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        //With serve-stale, an expired entry is the fallback while upstream is asked again
+        CompletableFuture<DNSCacheEntry> fetched = fetch(dnsQuestion);
+        DNSCacheEntry stale = DNSConfig.CACHE_STALE_SECONDS > 0 ? DNSCache.getStale(dnsQuestion) : null;
+        return stale == null ? fetched : orStale(fetched, stale);
+    }
+
+    //Answer with the upstream reply if it comes back usable within the latency budget, otherwise with the expired
+    //entry. The upstream lookup carries on either way and refreshes the cache when it does answer.
+    private CompletableFuture<DNSCacheEntry> orStale(CompletableFuture<DNSCacheEntry> fetched, DNSCacheEntry stale) {
+        CompletableFuture<DNSCacheEntry> answer = new CompletableFuture<>();
+        Runnable serveStale = () -> {
+            if (answer.complete(stale.asStale(DNSConfig.CACHE_STALE_TTL))) {
+                servedStale();
+            }
+        };
+        fetched.whenComplete((entry, error) -> {
+            //SERVFAIL and REFUSED count as upstream failing too
+            if (error != null || entry.RCODE == 2 || entry.RCODE == 5) {
+                serveStale.run();
+            } else {
+                answer.complete(entry);
+            }
+        });
+        CompletableFuture.delayedExecutor(DNSConfig.CACHE_STALE_BUDGET_MS, TimeUnit.MILLISECONDS, executor).execute(serveStale);
+        return answer;
+    }
+
+    //Count a stale answer. During an outage every query may be answered stale, so rather than a line per answer, a
+    //line is printed for the first one after a quiet minute.
+    private static void servedStale() {
+        DNSMetrics.staleAnswers.increment();
+        long now = System.currentTimeMillis();
+        if (now - lastStaleAnswer.getAndSet(now) > 60_000) {
+            System.out.println("Serving stale answers: upstream is failing or slow (see dns_cache_stale_answers_total)");
+        }
+    }
+
+    //The cached entry for a question, or null on a miss
+    private static DNSCacheEntry cached(DNSQuestion dnsQuestion) {
+        long start = System.nanoTime();
+        DNSCacheEntry cached = DNSCache.isInCache(dnsQuestion) ? DNSCache.getEntry(dnsQuestion) : null;
+        DNSMetrics.cache.recordSince(start);
+        (cached != null ? DNSMetrics.cacheHits : DNSMetrics.cacheMisses).increment();
+        return cached;
+    }
+
+    //Refresh a popular cached entry before it expires. Runs on a worker that DNSServer admitted the prefetch to;
+    //nobody waits on the result.
+    void prefetch(DNSQuestion dnsQuestion) {
+        DNSMetrics.prefetches.increment();
+        fetch(dnsQuestion);
+    }
+
+
+    //Ask upstream, or join the lookup for this question that is already in flight
+    private CompletableFuture<DNSCacheEntry> fetch(DNSQuestion dnsQuestion) {
+        CompletableFuture<DNSCacheEntry> started = new CompletableFuture<>();
+        CompletableFuture<DNSCacheEntry> existing = inFlight.putIfAbsent(dnsQuestion, started);
+        if (existing != null) {
+            return existing;
+        }
+
+        //We are the leader for this question: ask upstream and share the outcome with everyone who joined
+        DNSMetrics.upstreamQueries.increment();
+        long start = System.nanoTime();
+        forwarder.forward(queryFor(dnsQuestion))
+                .whenComplete((reply, error) -> DNSMetrics.upstream.recordSince(start))
+                .thenApplyAsync(reply -> cacheReply(dnsQuestion, reply), executor)
+                .whenComplete((entry, error) -> {
+                    inFlight.remove(dnsQuestion, started);
+                    if (error != null) {
+                        started.completeExceptionally(error);
+                    } else {
+                        started.complete(entry);
+                    }
+                });
+        return started;
+    }
+
+
+    //Decode an upstream reply for one question and cache it if it is a usable answer
+    private DNSCacheEntry cacheReply(DNSQuestion dnsQuestion, byte[] reply) {
+        DNSMessage googleResponseMessage;
+        try {
+            googleResponseMessage = DNSMessage.decodeMessage(reply);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+
+        //Debugging print out
+//        System.out.println(googleResponseMessage);
+
+        DNSCacheEntry entry = DNSCacheEntry.fromResponse(googleResponseMessage, dnsQuestion);
+
+        //Only cache complete answers (not truncated): successful ones (RCODE 0), and negative ones (NXDOMAIN or no
+        //records), which only get a TTL if they came with an SOA
+        boolean cacheable = (entry.RCODE == 0 || entry.isNegative()) && !googleResponseMessage.dnsHeader.TC && entry.TTL > 0;
+        if (cacheable) {
+
+            //Encode the answer once now so later hits only have to patch it
+            if (DNSConfig.CACHE_PREENCODED) {
+                try {
+                    entry.encode(dnsQuestion);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }
+
+            //Add answers to cache and check that add was successful
+            if (DNSCache.addEntry(dnsQuestion, entry)) {
+
+                //Print confirmation
+                if (DNSConfig.LOG_CACHE_INSERTS) {
+                    if (entry.isNegative()) {
+                        System.out.println("Added to cache: " + dnsQuestion.QNAME + " (" + (entry.RCODE == 0 ? "no data" : "no such name") + ", " + entry.TTL + "s)");
+                    } else {
+                        System.out.println("Added to cache: " + dnsQuestion.QNAME + " (" + entry.answers.size() + " answers)");
+                    }
+                }
+
+            } else if (DNSConfig.LOG_CACHE_INSERTS) {
+
+                //Print failure. Rejections are counted in DNSMetrics whether or not they are printed.
+                System.out.println("Failed to add: " + dnsQuestion.QNAME);
+            }
+        }
+        return entry;
+    }
+
+
+    //A recursive single-question query for the upstream resolver, advertising our EDNS payload size so answers bigger
+    //than 512 bytes still come back over UDP
+    private static byte[] queryFor(DNSQuestion dnsQuestion) {
+        DNSMessage query = new DNSMessage();
+        query.dnsQuestions.add(dnsQuestion);
+        query.dnsHeader = new DNSHeader();
+        query.dnsHeader.ID = (short) ThreadLocalRandom.current().nextInt(0x10000);
+        query.dnsHeader.RD = true;
+        query.dnsHeader.QDCOUNT = 1;
+        query.dnsAdditionalRecords.add(DNSEdns.queryOpt());
+        query.dnsHeader.ARCOUNT = 1;
+        return query.toBytes();
+    }
+
+
+    //Put the per-question results together. The reply carries the first error any question ran into.
+    private static DNSMessage buildResponse(DNSMessage request, ArrayList<DNSCacheEntry> entries) {
+        DNSMessage response = DNSMessage.buildResponseFromCache(request, entries);
+        response.dnsHeader.RA = true;
+        for (DNSCacheEntry entry : entries) {
+            if (entry.RCODE != 0) {
+                response.dnsHeader.RCODE = entry.RCODE;
+                break;
+            }
+        }
+        return response;
+    }
+
+}
@@ -1,138 +1,405 @@
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.ArrayList;
-
-//This class opens up a UDP socket (DatagramSocket class in Java), and listen for requests. When it gets one,
-//it looks at all the questions in the request. If there is a valid answer in cache, it adds that to the response,
-//otherwise it creates another UDP socket to forward the request to Google (8.8.8.8) and then await their response.
-//Once it's dealt with all the questions, it sends the response back to the client.
-//Note: dig sends an additional record in the "additionalRecord" fields with a type of 41.
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//This class opens up a UDP socket (a DatagramChannel in Java), and listen for requests. When it gets one,
+//it looks at all the questions in the request (see DNSResolver). If there is a valid answer in cache, it adds that to
+//the response, otherwise the question is sent upstream (Google, 8.8.8.8, unless dns.upstream lists others) through
+//the DNSForwarder on its own channels. Once every question has an answer, it sends the response back to the client.
+//The listeners read packets in batches into pooled buffers. Cache hits are answered on the listener's thread and sent
+//together at the end of the batch; everything else goes to a pool of worker threads, so one slow upstream answer
+//never holds up other clients. Workers encode replies straight into a direct buffer owned by the thread and send
+//from there, so answering a request doesn't allocate any byte arrays.
+//When the workers can't keep up, cache hits still go out from the listeners and the rest is shed instead of piling
+//up: a request is dropped when too many are already waiting for a worker, or when it has waited longer than a client
+//waits before retrying, and while the backlog is high only questions the cache can answer are handled.
+//With dns.listeners above 1 the port is opened several times with SO_REUSEPORT (see DNSUdpListener), each socket with
+//its own reader thread, so receiving scales with the number of cores instead of funnelling through one queue.
+//The same port also takes DNS over TCP (see DNSTcpListener), for clients that need answers too big for a datagram.
+//Note: dig sends an additional record in the "additionalRecord" fields with a type of 41. That is its EDNS(0) OPT
+//record, which DNSEdns uses to work out how big a UDP reply the client can take.
 public class DNSServer {
 
     //Member variables to setup server/socket and store data
-    private byte[] buffer = new byte[512]; //512 is max size of packet
-    private DatagramSocket socket = null;
-    private int receivingPort = 8053;
-    private int googlePort = 53;
-    private int senderPort;
-    private InetAddress senderIP;
-    private InetAddress googleAddress = InetAddress.getByName("8.8.8.8");
-    private boolean running = true;
-    private DatagramPacket responsePacket;
+    private final ArrayList<DNSUdpListener> listeners = new ArrayList<>();
+    private DNSTcpListener tcpListener;
+    private int receivingPort = DNSConfig.LISTEN_PORT;
+    private ArrayList<InetSocketAddress> upstreamAddresses = DNSUpstream.parse(DNSConfig.UPSTREAM_HOSTS, DNSConfig.UPSTREAM_PORT);
+    private ExecutorService workers;
 
-    //Constructor
-    DNSServer() throws IOException {
-        //Initialize receiver socket at specified port
-        socket = new DatagramSocket(receivingPort);
+    //Requests handed to the workers that haven't been started yet. Only new requests are counted and limited;
+    //upstream replies and other work for requests already taken on are never turned away.
+    private final AtomicInteger backlog = new AtomicInteger();
+    private static final long DEADLINE_NANOS = TimeUnit.MILLISECONDS.toNanos(DNSConfig.WORKER_DEADLINE_MS);
 
-    }
+    //Sends cache misses upstream on its own channels so upstream replies never land on the listening socket
+    private DNSForwarder forwarder;
 
-    //Run the server
-    public void run() throws IOException {
+    //Answers questions from the cache and the forwarder
+    private DNSResolver resolver;
 
-        //Run indefinitely
-        while (running) {
+    //Buffers that requests are received into, shared by all listeners and returned by whoever finishes the request.
+    //One byte bigger than any query we accept, so a datagram that didn't fit shows up as filling the buffer.
+    private final DNSBufferPool requestBuffers = new DNSBufferPool(DNSConfig.EDNS_PAYLOAD_SIZE + 1, 4096);
 
-            //Create a initialPacket to hold data of specified size
-            DatagramPacket initialPacket = new DatagramPacket(buffer, buffer.length);
+    //Response rate limiter for UDP queries, or null when it is off
+    private DNSRateLimiter rateLimiter;
 
-            //Put data received into the initialPacket from the socket
-            socket.receive(initialPacket);
+    //Log of every answer, or null when it is off
+    private DNSQueryLog queryLog;
 
-            //Save the sender's IP and port
-            senderIP = initialPacket.getAddress();
-            senderPort = initialPacket.getPort();
+    //Each thread's reply buffer, reused for every response it sends
+    private static final ThreadLocal<ByteBuffer> replyBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(65535));
 
-            //Send byte array to DNSMessage class for decoding, getData returns byte[]
-            DNSMessage initialMessage = DNSMessage.decodeMessage(initialPacket.getData());
-
-            //Debugging printout
-//            System.out.println(initialMessage);
-
-////////////////////////////////////////////////SENDING///////////////////////////////////////////////////////////////
+    //Constructor
+    DNSServer() throws IOException {
+        //Initialize the receiver sockets at the specified port. Sharing the port needs SO_REUSEPORT; without it there
+        //is only ever one socket.
+        int count = Math.max(1, DNSConfig.LISTENERS);
+        if (count > 1 && !DNSUdpListener.reusePortSupported()) {
+            System.out.println("SO_REUSEPORT is not supported here, using a single listener");
+            count = 1;
+        }
+        try {
+            for (int i = 0; i < count; i++) {
+                listeners.add(new DNSUdpListener(this, requestBuffers, receivingPort, count > 1, "dns-udp-" + i));
+            }
+            if (DNSConfig.TCP_ENABLED) {
+                tcpListener = new DNSTcpListener(this, receivingPort);
+            }
+        } catch (IOException e) {
+            for (DNSUdpListener listener : listeners) {
+                listener.close();
+            }
+            throw e;
+        }
 
-            //Array of answers for each question in request, boolean to determine if all are found
-            ArrayList<DNSRecord> answers = new ArrayList<>();
-            boolean allAnswersInCache = true;
+        //Initialize the worker pool that does the decoding, resolving and replying. Its queue is bounded: new requests
+        //and prefetches are held to WORKER_QUEUE by the backlog count, and the same again is left for work on requests
+        //already taken on (upstream replies and serve-stale timers, see DNSResolver). Whatever doesn't fit is rejected.
+        AtomicInteger workerCount = new AtomicInteger();
+        workers = new ThreadPoolExecutor(DNSConfig.WORKER_THREADS, DNSConfig.WORKER_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(2 * DNSConfig.WORKER_QUEUE),
+                runnable -> new Thread(runnable, "dns-worker-" + workerCount.getAndIncrement()),
+                new ThreadPoolExecutor.AbortPolicy());
+
+        //Initialize the forwarder that talks to the upstream resolvers
+        forwarder = new DNSForwarder(upstreamAddresses);
+        resolver = new DNSResolver(forwarder, workers);
+        DNSCache.setPrefetcher(this::prefetch);
+
+        DNSMetrics.start(forwarder.upstreams());
+        if (DNSConfig.RRL_RATE > 0) {
+            rateLimiter = new DNSRateLimiter(DNSConfig.RRL_RATE, DNSConfig.RRL_BURST, DNSConfig.RRL_SLIP,
+                    DNSConfig.RRL_ENTRIES, DNSConfig.RRL_IPV4_PREFIX, DNSConfig.RRL_IPV6_PREFIX);
+        }
+        if (!DNSConfig.QUERY_LOG.isEmpty()) {
+            queryLog = new DNSQueryLog(Path.of(DNSConfig.QUERY_LOG));
+        }
 
-            //Check DNS Cache for each answer record. All or nothing. All answers found in cache or ask Google for all answers.
-            for (int i = 0; i < initialMessage.dnsHeader.getQDCOUNT(); i++) {
+        //Warm the cache up from the last snapshot in the background, and keep saving it
+        if (!DNSConfig.CACHE_SNAPSHOT.isEmpty()) {
+            DNSCacheSnapshot.start(Path.of(DNSConfig.CACHE_SNAPSHOT));
+        }
+    }
 
-                //Check Cache
-                if (DNSCache.isInCache(initialMessage.dnsQuestions.get(i))) {
+    //Run the server. Every listener but the last gets its own thread; the last one runs on the calling thread, so
+    //this returns once the server is stopped.
+    public void run() throws IOException {
+        ArrayList<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < listeners.size() - 1; i++) {
+            Thread reader = new Thread(listeners.get(i), "dns-udp-" + i);
+            reader.start();
+            readers.add(reader);
+        }
+        if (tcpListener != null) {
+            Thread reader = new Thread(tcpListener, "dns-tcp");
+            reader.start();
+            readers.add(reader);
+        }
+        listeners.get(listeners.size() - 1).run();
+
+        //Wait for the other readers, then shut everything down
+        for (Thread reader : readers) {
+            try {
+                reader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        workers.shutdown();
+        forwarder.close();
+        DNSMetrics.stop();
+        if (queryLog != null) {
+            queryLog.close();
+        }
+    }
 
-                    //Add answer to array
-                    answers.add(DNSCache.getRecord(initialMessage.dnsQuestions.get(i)));
+    //Stop accepting new requests
+    public void stop() throws IOException {
+        for (DNSUdpListener listener : listeners) {
+            listener.close();
+        }
+        if (tcpListener != null) {
+            tcpListener.close();
+        }
+    }
 
-                } else {
-                    //If an answer was not found, mark false
-                    allAnswersInCache = false;
+    //Take one request from a UDP listener's batch or a TCP connection. Runs on the listener's thread. UDP queries over
+    //the rate limit are dropped or answered with an empty truncated reply before anything else is done. A single
+    //question whose answer is cached pre-encoded is answered right here by patching bytes into a reply buffer, without
+    //decoding the rest of the request or building any objects for the response; everything else goes to a worker.
+    void receive(DNSRequest request) {
+        (request.connection == null ? DNSMetrics.udpQueries : DNSMetrics.tcpQueries).increment();
+
+        //A datagram bigger than the receive buffer was cut short by the socket; don't parse what's left of it
+        if (request.connection == null && request.packet.limit() > DNSConfig.EDNS_PAYLOAD_SIZE) {
+            formatError(request);
+            return;
+        }
+        if (request.packet.limit() >= 12) {
+            try {
+                DNSMessageView view = request.view();
+                if (rateLimiter != null && request.connection == null && !admit(request, view)) {
+                    return;
                 }
-
+                if (request.connection == null) {
+                    request.replyLimit = DNSEdns.replyLimit(view);
+                }
+                if (DNSConfig.CACHE_PREENCODED && view.questionCount() == 1) {
+                    ByteBuffer buffer = request.listener != null ? request.listener.replyBuffer() : replyBuffer.get().clear();
+                    long start = System.nanoTime();
+                    boolean answered = answerFromWire(buffer, view);
+                    DNSMetrics.cache.recordSince(start);
+                    if (answered) {
+                        DNSMetrics.cacheHits.increment();
+                        if (request.connection == null) {
+                            DNSEdns.truncate(buffer, 0, request.replyLimit);
+                        }
+                        if (queryLog != null) {
+                            queryLog.record(request, view, buffer, true);
+                        }
+                        buffer.flip();
+                        if (request.listener != null) {
+                            request.listener.queueReply(request.client);
+                        } else {
+                            request.connection.send(buffer);
+                        }
+                        request.release();
+                        DNSMetrics.total.recordSince(request.received);
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                //Malformed; the worker reports it
             }
+        }
 
-            //Respond to request from Cache, else ask Google and forward
-            if (allAnswersInCache) {
-
-                //Build response DNSMessage object
-                DNSMessage response = DNSMessage.buildResponse(initialMessage, answers);
-
-                //Convert response to bytes
-                byte[] responseInBytes = response.toBytes();
-
-                //Create datagram packet to send to user
-                responsePacket = new DatagramPacket(responseInBytes, responseInBytes.length, senderIP, senderPort);
-
-            } else {
-                //Forward packet to google
-                DatagramPacket askGooglePacket = new DatagramPacket(buffer, buffer.length, googleAddress, googlePort);
-
-                //Send the packet
-                socket.send(askGooglePacket);
-
-                //Create new packet for the Google response
-                DatagramPacket googleResponsePacket = new DatagramPacket(buffer, buffer.length);
-
-                //Put data received into the googleResponsePacket from the socket
-                socket.receive(googleResponsePacket);
-
-                //Send byte array to DNSMessage class for decoding
-                DNSMessage googleResponseMessage = DNSMessage.decodeMessage(googleResponsePacket.getData());
+        //Shed early: a request that would only join the back of a full queue is dropped before it costs anything
+        if (backlog.get() >= DNSConfig.WORKER_QUEUE) {
+            DNSMetrics.shedQueueFull.increment();
+            abandon(request);
+            return;
+        }
+        backlog.incrementAndGet();
+        try {
+            workers.execute(() -> handle(request));
+        } catch (RejectedExecutionException e) {
+            //The queue is full of upstream replies, or the server is stopping
+            backlog.decrementAndGet();
+            (workers.isShutdown() ? DNSMetrics.dropped : DNSMetrics.shedQueueFull).increment();
+            abandon(request);
+        }
+    }
 
-                //Debugging print out
-//                System.out.println(googleResponseMessage);
+    //Refresh a popular cache entry in the background (see DNSCache). Called on whichever thread had the hit, often a
+    //listener. A prefetch is upstream work nobody is waiting for, so it is admitted like a miss: it counts towards the
+    //backlog, and is skipped while the backlog is past the miss limit or when the workers turn it away. The entry then
+    //just expires and the next miss fetches it.
+    private void prefetch(DNSQuestion dnsQuestion) {
+        if (backlog.get() >= DNSConfig.WORKER_MISS_LIMIT) {
+            DNSMetrics.shedPrefetches.increment();
+            return;
+        }
+        backlog.incrementAndGet();
+        try {
+            workers.execute(() -> {
+                backlog.decrementAndGet();
+                resolver.prefetch(dnsQuestion);
+            });
+        } catch (RejectedExecutionException e) {
+            backlog.decrementAndGet();
+            DNSMetrics.shedPrefetches.increment();
+        }
+    }
 
-                //For each answer
-                for (int i = 0; i < googleResponseMessage.dnsAnswers.size(); i++) {
+    //Check a UDP request against the rate limit. Over the limit, it is either dropped or sent an empty truncated reply,
+    //then released, and false is returned.
+    private boolean admit(DNSRequest request, DNSMessageView view) throws IOException {
+        int verdict = rateLimiter.check(request.client, view);
+        if (verdict == DNSRateLimiter.ALLOW) {
+            return true;
+        }
+        if (verdict == DNSRateLimiter.SLIP) {
+            ByteBuffer buffer = request.listener.replyBuffer();
+            DNSRateLimiter.writeTruncated(buffer, view);
+            buffer.flip();
+            request.listener.queueReply(request.client);
+        }
+        request.release();
+        return false;
+    }
 
-                    //Add answer to cache and check that add was successful
-                    if (DNSCache.addRecord(googleResponseMessage.dnsQuestions.get(i), googleResponseMessage.dnsAnswers.get(i))) {
+    //Resolve one request and send the reply. Runs on a worker thread.
+    private void handle(DNSRequest request) {
+        //A request that waited past the deadline is dropped unread; its client has retried or given up by now
+        long waited = System.nanoTime() - request.received;
+        backlog.decrementAndGet();
+        DNSMetrics.queue.record(waited);
+        if (waited > DEADLINE_NANOS) {
+            DNSMetrics.shedDeadline.increment();
+            abandon(request);
+            return;
+        }
 
-                        //Print confirmation
-                        System.out.println("Added to cache: " + googleResponseMessage.dnsQuestions.get(i).QNAME);
+        //Decode the request, then give its buffer back to the pool; nothing below reads the packet again
+        DNSMessage initialMessage;
+        long start = System.nanoTime();
+        try {
+            initialMessage = DNSMessage.decodeMessage(request.view());
+            DNSMetrics.decode.recordSince(start);
+        } catch (IOException e) {
+            DNSMetrics.dropped.increment();
+            System.out.println("Failed to handle " + request + ": " + e.getMessage());
+            if (request.connection != null) {
+                request.connection.dropped();
+            }
+            return;
+        } finally {
+            request.release();
+        }
 
-                    } else {
+        //Debugging printout
+//        System.out.println(initialMessage);
 
-                        //Print failure
-                        System.out.println("Failed to add: " + googleResponseMessage.dnsQuestions.get(i).QNAME);
-                    }
+        //We only speak EDNS version 0
+        DNSRecord requestOpt = DNSEdns.find(initialMessage.dnsAdditionalRecords);
+        if (requestOpt != null && ((requestOpt.TTL >> 16) & 0xFF) != 0) {
+            try {
+                send(request, badVersion(initialMessage, requestOpt), false);
+            } catch (IOException e) {
+                System.out.println("Failed to reply to " + request + ": " + e.getMessage());
+            }
+            return;
+        }
 
+        //Questions in the cache are answered straight away and only the misses go upstream. When everything was
+        //cached this completes on the current thread; otherwise a worker finishes it once upstream has answered.
+        //While the backlog is high, misses are dropped instead, so the workers' time goes to the answers they can give
+        //straight away rather than to upstream lookups and the replies that come back.
+        CompletableFuture<DNSMessage> resolved;
+        if (backlog.get() < DNSConfig.WORKER_MISS_LIMIT) {
+            resolved = resolver.resolve(initialMessage);
+        } else {
+            resolved = resolver.resolveCached(initialMessage);
+            if (resolved == null) {
+                DNSMetrics.shedMisses.increment();
+                abandon(request);
+                return;
+            }
+        }
+        boolean cached = resolved.isDone();
+        resolved.whenComplete((response, error) -> {
+            try {
+                if (error != null) {
+                    DNSMetrics.serverFailures.increment();
                 }
+                send(request, error == null ? response : serverFailure(initialMessage), cached);
+            } catch (IOException e) {
+                System.out.println("Failed to reply to " + request + ": " + e.getMessage());
+            }
+        });
+    }
 
-                //Build the response packet from the Google response
-                responsePacket = new DatagramPacket(googleResponsePacket.getData(), googleResponsePacket.getData().length, senderIP, senderPort);
+    //Answer a UDP request we can't read with just its header, flagged as a response with RCODE 1 (format error)
+    private static void formatError(DNSRequest request) {
+        ByteBuffer buffer = request.listener.replyBuffer();
+        ByteBuffer packet = request.packet;
+        buffer.put(0, packet, 0, 12).position(12);
+        buffer.put(2, (byte) ((packet.get(2) & 0x79) | 0x80));     //QR, keeping OPCODE and RD
+        buffer.put(3, (byte) 0x81);                                 //RA, RCODE 1
+        buffer.putShort(4, (short) 0);
+        buffer.putShort(6, (short) 0);
+        buffer.putShort(8, (short) 0);
+        buffer.putShort(10, (short) 0);
+        buffer.flip();
+        request.listener.queueReply(request.client);
+        request.release();
+    }
 
-            }
+    //Give up on a request without replying. A TCP connection is told so it can read more queries.
+    private static void abandon(DNSRequest request) {
+        request.release();
+        if (request.connection != null) {
+            request.connection.dropped();
+        }
+    }
 
-            //Send the response packet to complete the request
-            socket.send(responsePacket);
+    //Write the reply from the cache's pre-encoded bytes if possible. Returns false when the slow path has to handle it.
+    private static boolean answerFromWire(ByteBuffer buffer, DNSMessageView view) throws IOException {
+        DNSQuestion dnsQuestion = view.question(0);
+        DNSCacheEntry entry = DNSCache.isInCache(dnsQuestion) ? DNSCache.getEncoded(dnsQuestion) : null;
+        return entry != null && entry.writeResponse(buffer, view);
+    }
 
+    //Encode a response into this thread's reply buffer and send it to the client, truncated if it is too big for UDP.
+    //cached says whether it was answered without going upstream, for the query log.
+    private void send(DNSRequest request, DNSMessage response, boolean cached) throws IOException {
+        ByteBuffer buffer = replyBuffer.get();
+        buffer.clear();
+        long start = System.nanoTime();
+        response.writeTo(buffer);
+        if (request.connection == null) {
+            DNSEdns.truncate(buffer, 0, request.replyLimit);
+        }
+        DNSMetrics.encode.recordSince(start);
+        if (queryLog != null && !response.dnsQuestions.isEmpty()) {
+            queryLog.record(request, response.dnsQuestions.get(0), buffer, cached);
         }
+        buffer.flip();
+        if (request.connection != null) {
+            request.connection.send(buffer);
+        } else {
+            request.listener.send(buffer, request.client);
+        }
+        DNSMetrics.total.recordSince(request.received);
+    }
+
+    //Tell the client we couldn't get an answer (RCODE 2, server failure)
+    private static DNSMessage serverFailure(DNSMessage initialMessage) {
+        DNSMessage response = DNSMessage.buildResponse(initialMessage, new ArrayList<>());
+        response.dnsHeader.RCODE = 2;
+        return response;
+    }
 
-        //Close the socket when the server stops (currently never stops)
-        socket.close();
+    //Tell the client we don't support the EDNS version it asked for (extended RCODE 16, BADVERS)
+    private static DNSMessage badVersion(DNSMessage initialMessage, DNSRecord requestOpt) {
+        DNSMessage response = DNSMessage.buildResponse(initialMessage, new ArrayList<>());
+        response.dnsAdditionalRecords.clear();
+        response.dnsAdditionalRecords.add(DNSEdns.responseOpt(requestOpt, DNSEdns.BADVERS));
+        response.dnsHeader.ARCOUNT = 1;
+        response.dnsHeader.RCODE = 0;
+        return response;
     }
 
 }
@@ -0,0 +1,114 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//One client's TCP connection (RFC 7766). Every message on the stream is prefixed with its length in two bytes. A client
+//may send many queries without waiting (pipelining), and each one is resolved on its own, so replies go back in
+//whatever order they are ready in; the client matches them up by ID. Reading, writing and closing are only ever done
+//by the DNSTcpListener's thread. Workers just queue finished replies here and let the listener know.
+public class DNSTcpConnection {
+
+    //Member Variables
+    final SocketChannel channel;
+    final SocketAddress client;
+    final SelectionKey key;
+    private final DNSTcpListener listener;
+
+    //Bytes read but not yet made into requests. Grows to fit the largest message seen. Listener thread only.
+    ByteBuffer input = ByteBuffer.allocate(DNSConfig.MAX_UDP_SIZE + 2);
+
+    //Length-prefixed replies waiting to be written, oldest first
+    private final ConcurrentLinkedQueue<ByteBuffer> output = new ConcurrentLinkedQueue<>();
+
+    //Queries read from this connection that haven't been replied to yet
+    final AtomicInteger inFlight = new AtomicInteger();
+
+    long lastActivity;              //When something was last read or written, in ms. Listener thread only.
+    boolean inputClosed;            //The client has shut down its side of the connection
+    private volatile boolean closed;
+
+
+    //Constructor
+    DNSTcpConnection(DNSTcpListener listener, SocketChannel channel, SelectionKey key) throws IOException {
+        this.listener = listener;
+        this.channel = channel;
+        this.key = key;
+        this.client = channel.getRemoteAddress();
+        this.lastActivity = System.currentTimeMillis();
+    }
+
+
+    //Queue a reply (position to limit of the buffer, which is copied) for one of this connection's queries.
+    //Can be called from any thread.
+    void send(ByteBuffer reply) {
+        if (!closed) {
+            ByteBuffer framed = ByteBuffer.allocate(2 + reply.remaining());
+            framed.putShort((short) reply.remaining());
+            framed.put(reply);
+            framed.flip();
+            output.add(framed);
+        }
+        inFlight.decrementAndGet();
+        listener.wakeup(this);
+    }
+
+    //One of this connection's queries will never get a reply (it couldn't be decoded, or the server is stopping)
+    void dropped() {
+        inFlight.decrementAndGet();
+        listener.wakeup(this);
+    }
+
+    //Write as many queued replies as the socket will take. Listener thread only.
+    void flush() throws IOException {
+        ByteBuffer buffer;
+        while ((buffer = output.peek()) != null) {
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                return;
+            }
+            output.poll();
+            lastActivity = System.currentTimeMillis();
+        }
+    }
+
+    //True when replies are waiting to be written
+    boolean hasOutput() {
+        return !output.isEmpty();
+    }
+
+    //True when nothing is being worked on or written for this connection
+    boolean isQuiet() {
+        return inFlight.get() == 0 && output.isEmpty();
+    }
+
+    //Close the connection and forget any replies still queued. Listener thread only.
+    void close() {
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Failed to close " + this + ": " + e.getMessage());
+        }
+        output.clear();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    //IDE generated toString method. Useful for debugging
+    @Override
+    public String toString() {
+        return "DNSTcpConnection{" +
+                "client=" + client +
+                ", inFlight=" + inFlight.get() +
+                ", closed=" + closed +
+                '}';
+    }
+
+}
@@ -0,0 +1,265 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+//Accepts DNS over TCP on the listening port (RFC 7766) and runs every connection from a single non-blocking selector
+//thread. Each query read off a connection becomes a DNSRequest and goes through the same DNSServer.receive() path as
+//UDP, so TCP shares the resolver, the forwarder and DNSCache. Replies are as large as they need to be, which is what
+//clients fall back to TCP for.
+//Connections are kept open for more queries. One that has nothing in flight is closed once it has been idle for
+//dns.tcp.idle ms, and when dns.tcp.connections are open a new client pushes out the longest idle one, or is turned
+//away if none are idle. A connection with dns.tcp.pipeline queries in flight isn't read from until some are answered.
+public class DNSTcpListener implements Runnable {
+
+    //Member Variables
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final DNSServer server;
+    private volatile Thread thread;
+    private int connections;
+    private long lastIdleCheck;
+
+    //Connections with replies or finished queries that the selector thread hasn't looked at yet
+    private final ConcurrentLinkedQueue<DNSTcpConnection> ready = new ConcurrentLinkedQueue<>();
+
+
+    //Constructor
+    DNSTcpListener(DNSServer server, int port) throws IOException {
+        this.server = server;
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            selector = Selector.open();
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+    }
+
+
+    //Accept, read and write until the listener is closed
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            while (serverChannel.isOpen()) {
+                selector.select(1000);
+                if (!serverChannel.isOpen()) {
+                    break;
+                }
+
+                //Connections that workers have queued replies for
+                DNSTcpConnection connection;
+                while ((connection = ready.poll()) != null) {
+                    if (!connection.isClosed()) {
+                        write(connection);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    connection = (DNSTcpConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(connection);
+                        }
+                        if (!connection.isClosed() && key.isValid() && key.isWritable()) {
+                            write(connection);
+                        }
+                    } catch (IOException e) {
+                        //Reset by the client
+                        close(connection);
+                    } catch (RuntimeException e) {
+                        //A query this connection sent tripped a bug; drop the connection, not the listener
+                        System.out.println("Closing TCP connection from " + connection.client + ": " + e);
+                        close(connection);
+                    }
+                }
+
+                closeIdle();
+            }
+        } catch (ClosedSelectorException e) {
+            //The server is stopping
+        } catch (IOException e) {
+            System.out.println("TCP listener stopped: " + e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof DNSTcpConnection) {
+                    ((DNSTcpConnection) key.attachment()).close();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                System.out.println("Failed to close the TCP selector: " + e.getMessage());
+            }
+        }
+    }
+
+    //Take every waiting connection
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            if (connections >= DNSConfig.TCP_MAX_CONNECTIONS && !closeLongestIdle()) {
+                channel.close();
+                continue;
+            }
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new DNSTcpConnection(this, channel, key));
+            connections++;
+        }
+    }
+
+    //Read what the client sent and hand each complete message to the server
+    private void read(DNSTcpConnection connection) throws IOException {
+        if (connection.channel.read(connection.input) < 0) {
+            connection.inputClosed = true;
+            updateInterest(connection);
+            return;
+        }
+        connection.lastActivity = System.currentTimeMillis();
+
+        ByteBuffer input = connection.input;
+        input.flip();
+        while (input.remaining() >= 2) {
+            int length = input.getShort(input.position()) & 0xFFFF;
+            if (input.remaining() < 2 + length) {
+                break;
+            }
+            input.position(input.position() + 2);
+            byte[] bytes = new byte[length];
+            input.get(bytes);
+            connection.inFlight.incrementAndGet();
+            server.receive(DNSRequest.fromConnection(ByteBuffer.wrap(bytes), connection));
+        }
+        input.compact();
+
+        //Make room for a message bigger than anything this connection has sent before
+        if (input.position() >= 2) {
+            int needed = 2 + (input.getShort(0) & 0xFFFF);
+            if (needed > input.capacity()) {
+                ByteBuffer bigger = ByteBuffer.allocate(needed);
+                input.flip();
+                bigger.put(input);
+                connection.input = bigger;
+            }
+        }
+        updateInterest(connection);
+    }
+
+    //Write queued replies, then decide what to wait for next
+    private void write(DNSTcpConnection connection) {
+        try {
+            connection.flush();
+        } catch (IOException e) {
+            close(connection);
+            return;
+        }
+        updateInterest(connection);
+    }
+
+    //Read while there is room for more queries in flight, write while there are replies queued, and close once the
+    //client has finished sending and everything it asked for has been answered
+    private void updateInterest(DNSTcpConnection connection) {
+        if (connection.inputClosed && connection.isQuiet()) {
+            close(connection);
+            return;
+        }
+        int ops = 0;
+        if (!connection.inputClosed && connection.inFlight.get() < DNSConfig.TCP_PIPELINE) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (connection.hasOutput()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (connection.key.interestOps() != ops) {
+            connection.key.interestOps(ops);
+        }
+    }
+
+    //Close connections that have been quiet for longer than the idle timeout, at most once a second
+    private void closeIdle() {
+        long now = System.currentTimeMillis();
+        if (now - lastIdleCheck < 1000) {
+            return;
+        }
+        lastIdleCheck = now;
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof DNSTcpConnection) {
+                DNSTcpConnection connection = (DNSTcpConnection) key.attachment();
+                if (connection.isQuiet() && now - connection.lastActivity > DNSConfig.TCP_IDLE_MS) {
+                    close(connection);
+                }
+            }
+        }
+    }
+
+    //Make room for a new connection by closing the one that has been quiet the longest. False if none are quiet.
+    private boolean closeLongestIdle() {
+        DNSTcpConnection oldest = null;
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof DNSTcpConnection) {
+                DNSTcpConnection connection = (DNSTcpConnection) key.attachment();
+                if (connection.isQuiet() && (oldest == null || connection.lastActivity < oldest.lastActivity)) {
+                    oldest = connection;
+                }
+            }
+        }
+        if (oldest == null) {
+            return false;
+        }
+        close(oldest);
+        return true;
+    }
+
+    private void close(DNSTcpConnection connection) {
+        if (!connection.isClosed()) {
+            connection.close();
+            connections--;
+        }
+    }
+
+
+    //Called when a connection has a reply queued or a query finished. Can be called from any thread.
+    void wakeup(DNSTcpConnection connection) {
+        ready.add(connection);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    //Stop accepting connections and close the ones that are open
+    void close() throws IOException {
+        serverChannel.close();
+        selector.wakeup();
+    }
+
+    //IDE generated toString method. Useful for debugging
+    @Override
+    public String toString() {
+        return "DNSTcpListener{" +
+                "open=" + serverChannel.isOpen() +
+                ", connections=" + connections +
+                '}';
+    }
+
+}
@@ -0,0 +1,318 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+
+//Sends queries to the upstream resolver over a small pool of long-lived TCP connections (RFC 7766) instead of one
+//datagram each. Connections are opened when first needed and kept open, queries are spread across them round-robin,
+//and many can be outstanding on one connection at once: like DNSForwarder, every query gets a transaction ID of our
+//own and replies are matched back through a pending table, so they can come back in any order. A connection the
+//upstream closes is reopened on the next query, and queries still waiting on it are sent again on another one.
+//Everything except handing in a query happens on one selector thread.
+public class DNSTcpUpstream implements Runnable {
+
+    //One query waiting for its upstream reply
+    private static class PendingQuery {
+        byte[] query;                   //The query as sent upstream (with our ID)
+        DNSMessageView queryView;       //View over the query, for matching the question section
+        short originalID;               //The caller's ID, restored on the reply
+        long deadline;                  //When to give up (System.nanoTime)
+        int attemptsLeft;               //How many more connections it may be sent on if one closes under it
+        Connection connection;          //Connection it was last written to. Selector thread only.
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+    }
+
+    //One pooled connection. Selector thread only.
+    private static class Connection {
+        SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer input = ByteBuffer.allocate(4096);
+        ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+        boolean connected;
+    }
+
+    //Random IDs tried for a new query before sweeping for a free one
+    private static final int RANDOM_ID_TRIES = 16;
+
+    //Member Variables
+    private final InetSocketAddress upstream;
+    private final Selector selector;
+    private final Connection[] connections = new Connection[DNSConfig.UPSTREAM_TCP_CONNECTIONS];
+    private int next;
+    private final ConcurrentHashMap<Short, PendingQuery> pending = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<PendingQuery> submitted = new ConcurrentLinkedQueue<>();
+    private final long timeoutNanos = DNSConfig.UPSTREAM_TIMEOUT_MS * 1_000_000L * (DNSConfig.UPSTREAM_RETRIES + 1);
+    private volatile boolean running = true;
+
+
+    //Constructor, starts the selector thread. No connection is made until the first query.
+    DNSTcpUpstream(InetSocketAddress upstream) throws IOException {
+        this.upstream = upstream;
+        selector = Selector.open();
+
+        Thread thread = new Thread(this, "dns-upstream-tcp");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    //Send a query upstream over TCP. The future completes with the reply bytes (carrying the original ID), or fails
+    //once the query has waited as long as all its UDP attempts would have.
+    CompletableFuture<byte[]> query(byte[] query) {
+        PendingQuery pendingQuery = new PendingQuery();
+        pendingQuery.query = query.clone();
+        pendingQuery.queryView = DNSMessageView.wrap(pendingQuery.query, pendingQuery.query.length);
+        pendingQuery.originalID = pendingQuery.queryView.id();
+        pendingQuery.attemptsLeft = DNSConfig.UPSTREAM_RETRIES;
+        pendingQuery.deadline = System.nanoTime() + timeoutNanos;
+
+        //Pick an ID nobody else is waiting on: a few random tries, then a sweep through every ID. If all 65536 are in
+        //use the query fails, and the client gets a server failure, instead of spinning until one frees up.
+        short id = (short) ThreadLocalRandom.current().nextInt(0x10000);
+        for (int tries = 0; pending.putIfAbsent(id, pendingQuery) != null; tries++) {
+            if (tries == RANDOM_ID_TRIES + 0x10000) {
+                return CompletableFuture.failedFuture(new IOException("No free query ID, " + pending.size() + " queries in flight"));
+            }
+            id = tries < RANDOM_ID_TRIES ? (short) ThreadLocalRandom.current().nextInt(0x10000) : (short) (id + 1);
+        }
+        pendingQuery.queryView.setId(id);
+
+        submitted.add(pendingQuery);
+        selector.wakeup();
+        return pendingQuery.future;
+    }
+
+
+    //Selector loop: finish connecting, write queries, read replies, and expire queries that took too long
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select(10);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isConnectable()) {
+                            connection.channel.finishConnect();
+                            connection.connected = true;
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && connection.connected) {
+                            write(connection);
+                        }
+                    } catch (IOException e) {
+                        fail(connection);
+                    }
+                }
+
+                PendingQuery pendingQuery;
+                while ((pendingQuery = submitted.poll()) != null) {
+                    dispatch(pendingQuery);
+                }
+                checkTimeouts();
+            } catch (IOException e) {
+                System.out.println("Upstream TCP error: " + e.getMessage());
+            }
+        }
+    }
+
+
+    //Stop the selector thread, close the connections and fail anything still waiting
+    void close() throws IOException {
+        running = false;
+        selector.close();
+        for (Connection connection : connections) {
+            if (connection != null) {
+                connection.channel.close();
+            }
+        }
+        for (PendingQuery pendingQuery : pending.values()) {
+            pendingQuery.future.completeExceptionally(new IOException("Upstream TCP closed"));
+        }
+        pending.clear();
+    }
+
+
+    //Write a query to the next connection in the pool, opening it if it isn't open
+    private void dispatch(PendingQuery pendingQuery) {
+        if (pendingQuery.future.isDone()) {
+            return;
+        }
+        int slot = next;
+        next = (next + 1) % connections.length;
+        Connection connection = connections[slot];
+        try {
+            if (connection == null) {
+                connection = open();
+                connections[slot] = connection;
+            }
+        } catch (IOException e) {
+            if (pending.remove(pendingQuery.queryView.id(), pendingQuery)) {
+                pendingQuery.future.completeExceptionally(e);
+            }
+            return;
+        }
+
+        ByteBuffer framed = ByteBuffer.allocate(2 + pendingQuery.query.length);
+        framed.putShort((short) pendingQuery.query.length);
+        framed.put(pendingQuery.query);
+        framed.flip();
+        connection.output.add(framed);
+        pendingQuery.connection = connection;
+        if (connection.connected) {
+            try {
+                write(connection);
+            } catch (IOException e) {
+                fail(connection);
+            }
+        }
+    }
+
+    //Start connecting a new pooled connection
+    private Connection open() throws IOException {
+        Connection connection = new Connection();
+        connection.channel = SocketChannel.open();
+        try {
+            connection.channel.configureBlocking(false);
+            connection.connected = connection.channel.connect(upstream);
+            connection.key = connection.channel.register(selector,
+                    connection.connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, connection);
+        } catch (IOException e) {
+            connection.channel.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    //Write as much queued output as the socket will take, then wait to read (and to write, if some is left)
+    private void write(Connection connection) throws IOException {
+        ByteBuffer buffer;
+        while ((buffer = connection.output.peek()) != null) {
+            connection.channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                break;
+            }
+            connection.output.poll();
+        }
+        int ops = SelectionKey.OP_READ | (connection.output.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+        if (connection.key.interestOps() != ops) {
+            connection.key.interestOps(ops);
+        }
+    }
+
+    //Read replies off a connection and hand each complete one to its query
+    private void read(Connection connection) throws IOException {
+        if (connection.channel.read(connection.input) < 0) {
+            fail(connection);
+            return;
+        }
+        ByteBuffer input = connection.input;
+        input.flip();
+        while (input.remaining() >= 2) {
+            int length = input.getShort(input.position()) & 0xFFFF;
+            if (input.remaining() < 2 + length) {
+                break;
+            }
+            input.position(input.position() + 2);
+            byte[] reply = new byte[length];
+            input.get(reply);
+            complete(reply);
+        }
+        input.compact();
+
+        //Make room for a reply bigger than the buffer
+        if (input.position() >= 2) {
+            int needed = 2 + (input.getShort(0) & 0xFFFF);
+            if (needed > input.capacity()) {
+                ByteBuffer bigger = ByteBuffer.allocate(needed);
+                input.flip();
+                bigger.put(input);
+                connection.input = bigger;
+            }
+        }
+    }
+
+    //Hand a reply to the query it belongs to. Replies with an unknown ID or a different question are dropped.
+    private void complete(byte[] reply) {
+        if (reply.length < 12) {
+            return;
+        }
+        DNSMessageView replyView = DNSMessageView.wrap(reply, reply.length);
+        short id = replyView.id();
+        PendingQuery pendingQuery = pending.get(id);
+        try {
+            if (pendingQuery == null || !replyView.sameQuestions(pendingQuery.queryView)) {
+                return;
+            }
+        } catch (IOException e) {
+            return;
+        }
+        if (pending.remove(id, pendingQuery)) {
+            replyView.setId(pendingQuery.originalID);
+            pendingQuery.future.complete(reply);
+        }
+    }
+
+    //A connection broke or the upstream closed it. Drop it from the pool and send its queries again elsewhere.
+    private void fail(Connection connection) {
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            System.out.println("Failed to close upstream TCP connection: " + e.getMessage());
+        }
+        for (int i = 0; i < connections.length; i++) {
+            if (connections[i] == connection) {
+                connections[i] = null;
+            }
+        }
+        for (PendingQuery pendingQuery : pending.values()) {
+            if (pendingQuery.connection != connection) {
+                continue;
+            }
+            pendingQuery.connection = null;
+            if (pendingQuery.attemptsLeft > 0) {
+                pendingQuery.attemptsLeft--;
+                submitted.add(pendingQuery);
+            } else if (pending.remove(pendingQuery.queryView.id(), pendingQuery)) {
+                pendingQuery.future.completeExceptionally(new IOException("Connection to " + upstream + " closed"));
+            }
+        }
+    }
+
+    //Fail the queries that have waited too long
+    private void checkTimeouts() {
+        long now = System.nanoTime();
+        for (PendingQuery pendingQuery : pending.values()) {
+            if (now - pendingQuery.deadline >= 0 && pending.remove(pendingQuery.queryView.id(), pendingQuery)) {
+                DNSMetrics.upstreamTimeouts.increment();
+                pendingQuery.future.completeExceptionally(new TimeoutException("No answer from " + upstream + " over TCP"));
+            }
+        }
+    }
+
+
+    //IDE generated toString method. Useful for debugging
+    @Override
+    public String toString() {
+        return "DNSTcpUpstream{" +
+                "upstream=" + upstream +
+                ", pending=" + pending.size() +
+                '}';
+    }
+
+}
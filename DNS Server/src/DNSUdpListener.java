@@ -0,0 +1,204 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+//One UDP socket on the listening port and the thread that reads from it. With SO_REUSEPORT several listeners can be
+//bound to the same port, and the kernel spreads incoming packets between them by hashing the sender's address, so
+//each listener has its own kernel receive queue, its own reader thread and its own buffers, and none of them ever
+//touch each other. Replies go back out on the socket the request came in on, so the client sees the same source
+//address and port it sent to.
+//The socket is non-blocking and works in batches: each time the selector wakes up the listener reads every datagram
+//waiting (up to dns.io.batch) into pooled buffers, then hands the whole batch to the server. Requests the cache can
+//answer are replied to right there into the listener's own reply buffers, and those replies are sent together once
+//the batch is done, so a busy socket costs one wakeup per batch instead of one blocking call per packet.
+public class DNSUdpListener implements Runnable {
+
+    //Member Variables
+    final DatagramChannel channel;
+    private final DNSServer server;
+    private final DNSBufferPool pool;
+    private final String name;
+    private final Selector selector;
+    private final SelectionKey key;
+
+    //Requests read in the current batch
+    private final DNSRequest[] batch = new DNSRequest[DNSConfig.IO_BATCH];
+
+    //Replies made during the current batch, one buffer per request at most, and who they go to
+    private final ByteBuffer[] replies = new ByteBuffer[DNSConfig.IO_BATCH];
+    private final SocketAddress[] replyClients = new SocketAddress[DNSConfig.IO_BATCH];
+    private int queued;         //Replies waiting to be sent
+    private int flushed;        //Replies already sent
+
+
+    //Constructor. reusePort has to be set on every socket sharing the port, including the first one bound.
+    DNSUdpListener(DNSServer server, DNSBufferPool pool, int port, boolean reusePort, String name) throws IOException {
+        this.server = server;
+        this.pool = pool;
+        this.name = name;
+        channel = DatagramChannel.open();
+        try {
+            if (reusePort) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            key = channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        for (int i = 0; i < replies.length; i++) {
+            replies[i] = ByteBuffer.allocateDirect(65535);
+        }
+    }
+
+    //True when this platform lets several sockets share a port
+    static boolean reusePortSupported() {
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+
+    //Read and answer batches of packets until the channel is closed
+    @Override
+    public void run() {
+        try {
+            while (channel.isOpen()) {
+                selector.select();
+                if (!channel.isOpen()) {
+                    break;
+                }
+
+                //Replies left over from the last batch go first; nothing new is read until there is room for them
+                if (flushed < queued && !flush()) {
+                    continue;
+                }
+
+                int count = drain();
+                for (int i = 0; i < count; i++) {
+                    receive(batch[i]);
+                    batch[i] = null;
+                }
+                flush();
+            }
+        } catch (ClosedSelectorException e) {
+            //The server is stopping
+        } catch (IOException e) {
+            System.out.println(name + " stopped: " + e.getMessage());
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                System.out.println(name + " failed to close its selector: " + e.getMessage());
+            }
+        }
+    }
+
+    //Hand one request to the server. A bug tripped by one bad datagram costs that datagram, not the socket.
+    private void receive(DNSRequest request) {
+        try {
+            server.receive(request);
+        } catch (RuntimeException e) {
+            DNSMetrics.dropped.increment();
+            request.release();
+            System.out.println(name + " dropped a request from " + request.client + ": " + e);
+        }
+    }
+
+    //Read every waiting datagram, up to one batch, each into its own pooled buffer
+    private int drain() throws IOException {
+        int count = 0;
+        while (count < batch.length) {
+            ByteBuffer buffer = pool.acquire();
+            SocketAddress client;
+            try {
+                client = channel.receive(buffer);
+            } catch (IOException e) {
+                pool.release(buffer);
+                if (!channel.isOpen()) {
+                    break;
+                }
+                System.out.println(name + " failed to receive: " + e.getMessage());
+                continue;
+            }
+
+            //Nothing more waiting
+            if (client == null) {
+                pool.release(buffer);
+                break;
+            }
+            buffer.flip();
+            batch[count++] = DNSRequest.fromBuffer(buffer, client, this, pool);
+        }
+        return count;
+    }
+
+    //Send the replies queued in this batch. If the socket's send buffer fills up, wait for it to drain before reading
+    //anything else. Returns true once everything has been sent.
+    private boolean flush() throws IOException {
+        while (flushed < queued) {
+            if (channel.send(replies[flushed], replyClients[flushed]) == 0) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return false;
+            }
+            replyClients[flushed++] = null;
+        }
+        queued = 0;
+        flushed = 0;
+        if (key.interestOps() != SelectionKey.OP_READ) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+        return true;
+    }
+
+
+    //Cleared buffer for the next reply of this batch. Only the listener's own thread, inside server.receive(), may
+    //use it, and it has to be handed back with queueReply() before the next one is asked for.
+    ByteBuffer replyBuffer() {
+        ByteBuffer buffer = replies[queued];
+        buffer.clear();
+        return buffer;
+    }
+
+    //Queue the flipped reply buffer to be sent to client at the end of the batch
+    void queueReply(SocketAddress client) {
+        replyClients[queued++] = client;
+    }
+
+    //Send a reply straight away. Used by worker threads for answers that were not ready during the batch. The
+    //socket is non-blocking, so if its send buffer is full the reply is dropped like any lost datagram and the
+    //client will ask again.
+    void send(ByteBuffer buffer, SocketAddress client) throws IOException {
+        if (channel.send(buffer, client) == 0) {
+            DNSMetrics.dropped.increment();
+        }
+    }
+
+    //Stop listening; the reader thread leaves its loop once the selector wakes up
+    void close() throws IOException {
+        channel.close();
+        selector.wakeup();
+    }
+
+    //IDE generated toString method. Useful for debugging
+    @Override
+    public String toString() {
+        return "DNSUdpListener{" +
+                "name=" + name +
+                ", open=" + channel.isOpen() +
+                ", queued=" + (queued - flushed) +
+                '}';
+    }
+
+}
@@ -0,0 +1,188 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+
+//One upstream resolver the forwarder can send queries to, with its own connected UDP channel, its own pool of TCP
+//connections, and running statistics on how it has been doing. The round-trip time is smoothed the way TCP does it
+//(RFC 6298): srtt follows the average and rttvar the spread, so srtt + k * rttvar is a rough high percentile of how
+//long an answer takes. An upstream that misses three queries in a row is treated as down and only tried again once
+//it has been left alone for a few seconds.
+public class DNSUpstream {
+
+    //Consecutive failures before an upstream is treated as down, and how long until it is given another chance
+    private static final int MAX_FAILURES = 3;
+    private static final long RETRY_AFTER_MS = 5000;
+
+    //Never hedge sooner than this, so a fast upstream isn't asked twice for everything (milliseconds)
+    private static final long MIN_HEDGE_MS = 5;
+
+    //Member Variables
+    final InetSocketAddress address;
+    final DatagramChannel channel;
+    final DNSTcpUpstream tcp;
+    final DNSHistogram rtt = new DNSHistogram();
+
+    //Smoothed round-trip time and its variation in nanoseconds; 0 until the first answer
+    private volatile long srtt;
+    private volatile long rttvar;
+    private volatile int consecutiveFailures;
+    private volatile long lastFailure;      //System.currentTimeMillis() of the last failure
+    private volatile long answers;
+    private volatile long failures;
+
+
+    //Constructor, opens a non-blocking UDP channel connected to the upstream so only its replies are read from it
+    DNSUpstream(InetSocketAddress address) throws IOException {
+        this.address = address;
+        channel = DatagramChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.connect(address);
+            tcp = new DNSTcpUpstream(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    //Parse a comma separated list of upstreams, each "host", "host:port" or "[ipv6]:port"
+    static ArrayList<InetSocketAddress> parse(String list, int defaultPort) {
+        ArrayList<InetSocketAddress> addresses = new ArrayList<>();
+        for (String entry : list.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            String host = entry;
+            int port = defaultPort;
+            if (entry.startsWith("[")) {
+                int close = entry.indexOf(']');
+                host = entry.substring(1, close);
+                if (entry.length() > close + 2 && entry.charAt(close + 1) == ':') {
+                    port = Integer.parseInt(entry.substring(close + 2));
+                }
+            } else if (entry.indexOf(':') >= 0 && entry.indexOf(':') == entry.lastIndexOf(':')) {
+                host = entry.substring(0, entry.indexOf(':'));
+                port = Integer.parseInt(entry.substring(entry.indexOf(':') + 1));
+            }
+            addresses.add(new InetSocketAddress(host, port));
+        }
+        return addresses;
+    }
+
+
+    //An answer came back after rtt nanoseconds
+    synchronized void recordAnswer(long rtt) {
+        answers++;
+        consecutiveFailures = 0;
+        if (rtt <= 0) {
+            return;
+        }
+        this.rtt.record(rtt);
+        if (srtt == 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+        }
+    }
+
+    //A query to this upstream went unanswered or its connection failed
+    synchronized void recordFailure() {
+        failures++;
+        lastFailure = System.currentTimeMillis();
+        if (++consecutiveFailures == MAX_FAILURES) {
+            System.out.println("Upstream " + address + " is not answering, trying others first");
+        }
+    }
+
+    //False while the upstream has recently failed several times in a row
+    boolean isHealthy() {
+        return consecutiveFailures < MAX_FAILURES || System.currentTimeMillis() - lastFailure > RETRY_AFTER_MS;
+    }
+
+    //How long to wait for this upstream before asking another one as well, or 0 if we know too little to say
+    long hedgeDelayNanos() {
+        if (srtt == 0) {
+            return 0;
+        }
+        long delay = srtt + (long) (DNSConfig.HEDGE_FACTOR * rttvar);
+        return Math.max(delay, MIN_HEDGE_MS * 1_000_000L);
+    }
+
+    long srtt() {
+        return srtt;
+    }
+
+    long rttvar() {
+        return rttvar;
+    }
+
+    int consecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    long answers() {
+        return answers;
+    }
+
+    long failures() {
+        return failures;
+    }
+
+
+    //The healthy upstream with the lowest smoothed RTT, skipping exclude. Upstreams nobody has heard from yet count
+    //as fastest, so each gets tried. Null if no other upstream is healthy.
+    static DNSUpstream fastest(DNSUpstream[] upstreams, DNSUpstream exclude) {
+        DNSUpstream best = null;
+        for (DNSUpstream upstream : upstreams) {
+            if (upstream == exclude || !upstream.isHealthy()) {
+                continue;
+            }
+            if (best == null || upstream.srtt < best.srtt) {
+                best = upstream;
+            }
+        }
+        return best;
+    }
+
+    //Upstream for the next attempt at a query: the fastest healthy one other than exclude, then exclude itself if it
+    //is healthy, and if everything is down, the one that has failed the fewest times in a row
+    static DNSUpstream choose(DNSUpstream[] upstreams, DNSUpstream exclude) {
+        DNSUpstream best = fastest(upstreams, exclude);
+        if (best == null && exclude != null && exclude.isHealthy()) {
+            best = exclude;
+        }
+        if (best == null) {
+            for (DNSUpstream upstream : upstreams) {
+                if (best == null || upstream.consecutiveFailures < best.consecutiveFailures) {
+                    best = upstream;
+                }
+            }
+        }
+        return best;
+    }
+
+
+    //Close the UDP channel and the TCP pool
+    void close() throws IOException {
+        channel.close();
+        tcp.close();
+    }
+
+    //IDE generated toString method. Useful for debugging
+    @Override
+    public String toString() {
+        return "DNSUpstream{" +
+                "address=" + address +
+                ", srttMs=" + srtt / 1_000_000.0 +
+                ", rttvarMs=" + rttvar / 1_000_000.0 +
+                ", answers=" + answers +
+                ", failures=" + failures +
+                ", healthy=" + isHealthy() +
+                '}';
+    }
+
+}
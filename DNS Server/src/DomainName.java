@@ -0,0 +1,238 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+//A domain name stored the way it goes on the wire: each label prefixed with its length, ending with a 0 byte, packed
+//into one byte array with no compression pointers. Names are immutable and compare case-insensitively (RFC 4343) while
+//keeping the letter case they arrived with. The hash and the offset of each label are worked out once, when the name is
+//made, so every field is final and a name can be shared between threads safely. Names decoded from messages go through
+//a small intern table, so the question name, the owner names of its answers and repeat queries for the same name
+//usually share one object. Only a name with exactly the same bytes is shared: a query in a different letter case gets
+//its own object, so the question echoed in the reply is spelled the way the client sent it (which resolvers using
+//random case, "0x20", check).
+public final class DomainName {
+
+    //The root name "."
+    static final DomainName ROOT = new DomainName(new byte[]{0});
+
+    //Longest name the wire format allows, including length bytes and the final 0
+    static final int MAX_LENGTH = 255;
+
+    //Intern table: a lossy, direct-mapped array. A new name simply replaces whatever else hashed to its slot, so the
+    //table never grows and lookups never lock.
+    private static final int INTERN_SLOTS = 1 << 16;
+    private static final DomainName[] internTable = new DomainName[INTERN_SLOTS];
+
+    //Scratch space for assembling a name while following compression pointers
+    private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[MAX_LENGTH]);
+
+    //Most compression pointers followed while reading one name, so a pointer loop can't hang the decoder
+    private static final int MAX_POINTERS = 64;
+
+    //Member Variables
+    private final byte[] wire;
+    private final int hash;
+    private final byte[] labelOffsets;  //Offset of each label's length byte
+
+
+    //Constructor, takes ownership of the array
+    private DomainName(byte[] wire) {
+        this.wire = wire;
+        int h = 1;
+        for (byte b : wire) {
+            h = 31 * h + toLower(b);
+        }
+        this.hash = h;
+
+        int count = 0;
+        for (int position = 0; wire[position] != 0; position += wire[position] + 1) {
+            count++;
+        }
+        labelOffsets = new byte[count];
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            labelOffsets[i] = (byte) position;
+            position += wire[position] + 1;
+        }
+    }
+
+
+    //Read the name that starts at offset in a message buffer, following compression pointers. Every label and pointer
+    //is checked against the buffer's limit, so a malformed name is an IOException rather than an unchecked one.
+    static DomainName fromWire(ByteBuffer buffer, int offset) throws IOException {
+        byte[] bytes = scratch.get();
+        int length = 0;
+        int pointers = 0;
+        int limit = buffer.limit();
+        while (true) {
+            if (offset < 0 || offset >= limit) {
+                throw new IOException("Domain name runs past the end of the message at offset " + offset);
+            }
+            int labelLength = buffer.get(offset) & 0xFF;
+
+            //Terminating character
+            if (labelLength == 0) {
+                break;
+            }
+
+            //If the first two bits are set the rest of the name is somewhere earlier in the message
+            if ((labelLength & 0xC0) == 0xC0) {
+                if (++pointers > MAX_POINTERS) {
+                    throw new IOException("Compression pointer loop at offset " + offset);
+                }
+                if (offset + 1 >= limit) {
+                    throw new IOException("Compression pointer runs past the end of the message at offset " + offset);
+                }
+                offset = ((labelLength & 0x3F) << 8) | (buffer.get(offset + 1) & 0xFF);
+                continue;
+            }
+            if ((labelLength & 0xC0) != 0) {
+                throw new IOException("Unsupported label type at offset " + offset);
+            }
+            if (length + labelLength + 2 > MAX_LENGTH) {
+                throw new IOException("Domain name longer than " + MAX_LENGTH + " bytes");
+            }
+            if (offset + 1 + labelLength > limit) {
+                throw new IOException("Label runs past the end of the message at offset " + offset);
+            }
+
+            //Copy the length byte and the label
+            bytes[length] = (byte) labelLength;
+            buffer.get(offset + 1, bytes, length + 1, labelLength);
+            length += labelLength + 1;
+            offset += labelLength + 1;
+        }
+        bytes[length++] = 0;
+
+        //Reuse the interned copy if there is one, otherwise make and intern a new one
+        int h = 1;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + toLower(bytes[i]);
+        }
+        int slot = (h ^ (h >>> 16)) & (INTERN_SLOTS - 1);
+        DomainName interned = internTable[slot];
+        if (interned != null && interned.hash == h && interned.identicalBytes(bytes, length)) {
+            return interned;
+        }
+        byte[] exact = new byte[length];
+        System.arraycopy(bytes, 0, exact, 0, length);
+        DomainName name = new DomainName(exact);
+        internTable[slot] = name;
+        return name;
+    }
+
+    //Parse a dotted name such as "www.example.com" (a trailing dot is optional)
+    static DomainName of(String dotted) {
+        if (dotted.isEmpty() || dotted.equals(".")) {
+            return ROOT;
+        }
+        String[] labels = dotted.split("\\.");
+        int length = 1;
+        for (String label : labels) {
+            length += label.length() + 1;
+        }
+        byte[] bytes = new byte[length];
+        int position = 0;
+        for (String label : labels) {
+            bytes[position++] = (byte) label.length();
+            byte[] labelBytes = label.getBytes(StandardCharsets.ISO_8859_1);
+            System.arraycopy(labelBytes, 0, bytes, position, labelBytes.length);
+            position += labelBytes.length;
+        }
+        return new DomainName(bytes);
+    }
+
+
+    //Number of labels, not counting the root
+    int labelCount() {
+        return labelOffsets.length;
+    }
+
+    //Offset of the i-th label's length byte in the wire form
+    int labelOffset(int i) {
+        return labelOffsets[i] & 0xFF;
+    }
+
+    //Length of the i-th label
+    int labelLength(int i) {
+        return wire[labelOffset(i)];
+    }
+
+    //The i-th label as a String
+    String label(int i) {
+        int offset = labelOffset(i);
+        return new String(wire, offset + 1, wire[offset], StandardCharsets.ISO_8859_1);
+    }
+
+    //Byte j of the wire form
+    byte byteAt(int j) {
+        return wire[j];
+    }
+
+    //Size of the wire form
+    int wireLength() {
+        return wire.length;
+    }
+
+    //Write the uncompressed wire form at the current position of the buffer
+    void writeTo(ByteBuffer buffer) {
+        buffer.put(wire);
+    }
+
+
+    //Compare with the first length bytes of an array, letter case included
+    private boolean identicalBytes(byte[] bytes, int length) {
+        return Arrays.equals(wire, 0, wire.length, bytes, 0, length);
+    }
+
+    //Compare with the first length bytes of an array, ignoring case
+    private boolean sameBytes(byte[] bytes, int length) {
+        if (wire.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (wire[i] != bytes[i] && toLower(wire[i]) != toLower(bytes[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //ASCII lower case of one byte; length bytes and non-letters are unchanged
+    private static int toLower(byte b) {
+        return (b >= 'A' && b <= 'Z') ? b + 32 : b;
+    }
+
+
+    //Names are equal when their labels match ignoring case
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof DomainName)) return false;
+        DomainName that = (DomainName) o;
+        return hash == that.hash && sameBytes(that.wire, that.wire.length);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    //Dotted form, e.g. "www.example.com"
+    @Override
+    public String toString() {
+        if (wire.length == 1) {
+            return ".";
+        }
+        StringBuilder stringBuilder = new StringBuilder(wire.length);
+        for (int position = 0; wire[position] != 0; position += wire[position] + 1) {
+            if (position > 0) {
+                stringBuilder.append('.');
+            }
+            stringBuilder.append(new String(wire, position + 1, wire[position], StandardCharsets.ISO_8859_1));
+        }
+        return stringBuilder.toString();
+    }
+
+}
@@ -0,0 +1,85 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//Answering from a pre-encoded cache entry: ID, flags, question case, TTLs and the OPT record are patched in
+class DNSCacheEntryTest {
+
+    @Test
+    void writeResponsePatchesIdCaseAndTtls() throws IOException {
+        DNSMessage upstream = TestMessages.query((short) 1, "ttl.example.com", TestMessages.TYPE_A, false);
+        DNSCacheEntry entry = DNSCacheEntry.fromResponse(
+                TestMessages.response(upstream, TestMessages.a("ttl.example.com", 300, 1),
+                        TestMessages.a("ttl.example.com", 120, 2)),
+                upstream.dnsQuestions.get(0));
+        assertEquals(120, entry.TTL);
+
+        //Cached 100 seconds ago
+        entry.creationTime = Instant.now().minusSeconds(100);
+        entry.encode(upstream.dnsQuestions.get(0));
+
+        byte[] query = TestMessages.query((short) 0x4321, "TtL.ExAmple.com", TestMessages.TYPE_A, false).toBytes();
+        ByteBuffer out = ByteBuffer.allocate(512);
+        assertTrue(entry.writeResponse(out, DNSMessageView.wrap(query, query.length)));
+
+        DNSMessage reply = DNSMessage.decodeMessage(out.array(), out.position());
+        assertEquals(0x4321, reply.dnsHeader.ID);
+        assertTrue(reply.dnsHeader.QR);
+        assertTrue(reply.dnsHeader.RD);
+        assertTrue(reply.dnsHeader.RA);
+        assertEquals("TtL.ExAmple.com", reply.dnsQuestions.get(0).QNAME.toString());
+        assertEquals(200, reply.dnsAnswers.get(0).TTL);
+        assertEquals(20, reply.dnsAnswers.get(1).TTL);
+        assertTrue(reply.dnsAdditionalRecords.isEmpty());
+    }
+
+    @Test
+    void writeResponseNeverCountsBelowZero() throws IOException {
+        DNSMessage upstream = TestMessages.query((short) 1, "old.example.com", TestMessages.TYPE_A, false);
+        DNSCacheEntry entry = DNSCacheEntry.fromResponse(
+                TestMessages.response(upstream, TestMessages.a("old.example.com", 30, 1)), upstream.dnsQuestions.get(0));
+        entry.creationTime = Instant.now().minusSeconds(60);
+        entry.encode(upstream.dnsQuestions.get(0));
+
+        byte[] query = TestMessages.query((short) 2, "old.example.com", TestMessages.TYPE_A, false).toBytes();
+        ByteBuffer out = ByteBuffer.allocate(512);
+        assertTrue(entry.writeResponse(out, DNSMessageView.wrap(query, query.length)));
+        assertEquals(0, DNSMessage.decodeMessage(out.array(), out.position()).dnsAnswers.get(0).TTL);
+    }
+
+    @Test
+    void writeResponseAnswersEdnsWithOpt() throws IOException {
+        DNSMessage upstream = TestMessages.query((short) 1, "edns.example.com", TestMessages.TYPE_A, true);
+        DNSCacheEntry entry = DNSCacheEntry.fromResponse(
+                TestMessages.response(upstream, TestMessages.a("edns.example.com", 60, 1)), upstream.dnsQuestions.get(0));
+        entry.encode(upstream.dnsQuestions.get(0));
+
+        byte[] query = TestMessages.query((short) 3, "edns.example.com", TestMessages.TYPE_A, true).toBytes();
+        ByteBuffer out = ByteBuffer.allocate(512);
+        assertTrue(entry.writeResponse(out, DNSMessageView.wrap(query, query.length)));
+
+        DNSMessage reply = DNSMessage.decodeMessage(out.array(), out.position());
+        assertEquals(1, reply.dnsAdditionalRecords.size());
+        assertEquals(41, reply.dnsAdditionalRecords.get(0).TYPE);
+    }
+
+    @Test
+    void writeResponseLeavesSmallBuffersAlone() throws IOException {
+        DNSMessage upstream = TestMessages.query((short) 1, "small.example.com", TestMessages.TYPE_A, false);
+        DNSCacheEntry entry = DNSCacheEntry.fromResponse(
+                TestMessages.response(upstream, TestMessages.a("small.example.com", 60, 1)), upstream.dnsQuestions.get(0));
+        entry.encode(upstream.dnsQuestions.get(0));
+
+        byte[] query = TestMessages.query((short) 4, "small.example.com", TestMessages.TYPE_A, false).toBytes();
+        ByteBuffer out = ByteBuffer.allocate(20);
+        assertFalse(entry.writeResponse(out, DNSMessageView.wrap(query, query.length)));
+        assertEquals(0, out.position());
+    }
+
+}
@@ -0,0 +1,97 @@
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//Admission, replacement and expiry in the heap cache. The cache is static and shared by every test here; surefire
+//runs it with room for 8 entries and 64 KB (see server/pom.xml), and each test uses names of its own.
+class DNSCacheTest {
+
+    @Test
+    void addedEntryIsServed() {
+        DNSQuestion question = TestMessages.question("served.example.com", TestMessages.TYPE_A);
+        DNSCacheEntry entry = entry("served.example.com", 300, 1);
+        assertTrue(DNSCache.addEntry(question, entry));
+        assertTrue(DNSCache.isInCache(TestMessages.question("SERVED.example.com", TestMessages.TYPE_A)));
+        assertSame(entry, DNSCache.getEntry(question));
+    }
+
+    @Test
+    void expiredEntryIsRemoved() {
+        DNSQuestion question = TestMessages.question("expired.example.com", TestMessages.TYPE_A);
+        DNSCacheEntry entry = entry("expired.example.com", 5, 1);
+        entry.creationTime = Instant.now().minusSeconds(10);
+        DNSCache.addEntry(question, entry);
+
+        assertFalse(DNSCache.isInCache(question));
+        assertNull(DNSCache.getEntry(question));
+        assertNull(DNSCache.getStale(question));
+    }
+
+    @Test
+    void replacementThatDoesNotFitKeepsTheOldAnswer() {
+        DNSQuestion question = TestMessages.question("keep.example.com", TestMessages.TYPE_A);
+        DNSCacheEntry small = entry("keep.example.com", 300, 1);
+        assertTrue(DNSCache.addEntry(question, small));
+
+        //20 records of 4000 bytes is more than the whole 64 KB budget
+        DNSMessage query = TestMessages.query((short) 1, "keep.example.com", TestMessages.TYPE_A, false);
+        DNSRecord[] records = new DNSRecord[20];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = TestMessages.record("keep.example.com", (short) 16, 300, new byte[4000]);
+        }
+        DNSCacheEntry huge = DNSCacheEntry.fromResponse(TestMessages.response(query, records), question);
+        assertFalse(DNSCache.addEntry(question, huge));
+
+        assertTrue(DNSCache.isInCache(question));
+        assertSame(small, DNSCache.getEntry(question));
+    }
+
+    @Test
+    void fullCacheOnlyAdmitsPopularNewcomers() {
+        //Fill the cache with names that have been asked for a few times, pushing out anything left by other tests
+        for (int i = 0; i < DNSCache.MAX_ENTRIES; i++) {
+            DNSQuestion question = TestMessages.question("fill" + i + ".example.com", TestMessages.TYPE_A);
+            askFor(question, 5);
+            assertTrue(DNSCache.addEntry(question, entry("fill" + i + ".example.com", 300, i)));
+        }
+        for (int i = 0; i < DNSCache.MAX_ENTRIES; i++) {
+            assertTrue(DNSCache.isInCache(TestMessages.question("fill" + i + ".example.com", TestMessages.TYPE_A)));
+        }
+        assertEquals(DNSCache.MAX_ENTRIES, DNSCache.size());
+
+        //A name seen once doesn't get to push out a popular one
+        DNSQuestion cold = TestMessages.question("cold.example.com", TestMessages.TYPE_A);
+        assertFalse(DNSCache.addEntry(cold, entry("cold.example.com", 300, 1)));
+        assertNull(DNSCache.getEntry(cold));
+
+        //A name that keeps missing does, and takes the least recently used slot
+        DNSQuestion hot = TestMessages.question("hot.example.com", TestMessages.TYPE_A);
+        askFor(hot, 10);
+        assertTrue(DNSCache.addEntry(hot, entry("hot.example.com", 300, 1)));
+        assertTrue(DNSCache.isInCache(hot));
+        assertNull(DNSCache.getEntry(TestMessages.question("fill0.example.com", TestMessages.TYPE_A)));
+        assertEquals(DNSCache.MAX_ENTRIES, DNSCache.size());
+    }
+
+
+    //A cache entry holding one A record
+    private static DNSCacheEntry entry(String name, int ttl, int x) {
+        DNSMessage query = TestMessages.query((short) 1, name, TestMessages.TYPE_A, false);
+        return DNSCacheEntry.fromResponse(TestMessages.response(query, TestMessages.a(name, ttl, x)),
+                query.dnsQuestions.get(0));
+    }
+
+    //Look a question up the given number of times, so the admission policy has seen it
+    private static void askFor(DNSQuestion question, int times) {
+        for (int i = 0; i < times; i++) {
+            DNSCache.isInCache(question);
+        }
+    }
+
+}
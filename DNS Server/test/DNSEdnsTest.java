@@ -0,0 +1,82 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//Cutting replies that are too big for the client's UDP limit back to a truncated header and question
+class DNSEdnsTest {
+
+    @Test
+    void replyUnderTheLimitIsLeftAlone() throws IOException {
+        ByteBuffer out = write(response(2, false));
+        int length = out.position();
+        DNSEdns.truncate(out, 0, 512);
+        assertEquals(length, out.position());
+    }
+
+    @Test
+    void oversizedReplyIsTruncated() throws IOException {
+        DNSMessage response = response(40, false);
+        ByteBuffer out = write(response);
+        DNSEdns.truncate(out, 0, 512);
+
+        DNSMessage reply = DNSMessage.decodeMessage(out.array(), out.position());
+        assertTrue(reply.dnsHeader.TC);
+        assertEquals(1, reply.dnsQuestions.size());
+        assertEquals(response.dnsQuestions.get(0), reply.dnsQuestions.get(0));
+        assertTrue(reply.dnsAnswers.isEmpty());
+        assertTrue(reply.dnsAdditionalRecords.isEmpty());
+    }
+
+    @Test
+    void truncatedReplyKeepsOpt() throws IOException {
+        ByteBuffer out = write(response(40, true));
+        DNSEdns.truncate(out, 0, 512);
+
+        DNSMessage reply = DNSMessage.decodeMessage(out.array(), out.position());
+        assertTrue(reply.dnsHeader.TC);
+        assertTrue(reply.dnsAnswers.isEmpty());
+        assertEquals(1, reply.dnsAdditionalRecords.size());
+        assertEquals(41, reply.dnsAdditionalRecords.get(0).TYPE);
+    }
+
+    @Test
+    void truncateWorksFromAnOffset() throws IOException {
+        //TCP replies are written after a 2 byte length prefix
+        ByteBuffer out = ByteBuffer.allocate(65535);
+        out.putShort((short) 0);
+        response(40, false).writeTo(out);
+        DNSEdns.truncate(out, 2, 512);
+
+        DNSMessage reply = DNSMessage.decodeMessage(Arrays.copyOfRange(out.array(), 2, out.position()));
+        assertTrue(reply.dnsHeader.TC);
+        assertTrue(reply.dnsAnswers.isEmpty());
+    }
+
+
+    //A response with the given number of A records, and an OPT record if edns is set
+    private static DNSMessage response(int answers, boolean edns) {
+        DNSMessage query = TestMessages.query((short) 9, "big.example.com", TestMessages.TYPE_A, edns);
+        DNSRecord[] records = new DNSRecord[answers];
+        for (int i = 0; i < answers; i++) {
+            records[i] = TestMessages.a("big.example.com", 60, i);
+        }
+        DNSMessage response = TestMessages.response(query, records);
+        if (edns) {
+            response.dnsAdditionalRecords.add(DNSEdns.queryOpt());
+            response.dnsHeader.ARCOUNT = 1;
+        }
+        return response;
+    }
+
+    private static ByteBuffer write(DNSMessage message) {
+        ByteBuffer out = ByteBuffer.allocate(65535);
+        message.writeTo(out);
+        return out;
+    }
+
+}
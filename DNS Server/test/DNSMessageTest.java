@@ -0,0 +1,128 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//Encoding and decoding whole messages, name compression, and rejecting malformed packets
+class DNSMessageTest {
+
+    @Test
+    void responseSurvivesRoundTrip() throws IOException {
+        DNSMessage query = TestMessages.query((short) 0x1234, "www.example.com", TestMessages.TYPE_A, true);
+        DNSMessage response = TestMessages.response(query,
+                TestMessages.a("www.example.com", 300, 1),
+                TestMessages.a("www.example.com", 300, 2));
+        response.dnsAdditionalRecords.add(DNSEdns.queryOpt());
+        response.dnsHeader.ARCOUNT = 1;
+
+        byte[] bytes = response.toBytes();
+        DNSMessage decoded = DNSMessage.decodeMessage(bytes);
+
+        assertEquals(0x1234, decoded.dnsHeader.ID);
+        assertTrue(decoded.dnsHeader.QR);
+        assertTrue(decoded.dnsHeader.RD);
+        assertTrue(decoded.dnsHeader.RA);
+        assertEquals(query.dnsQuestions.get(0), decoded.dnsQuestions.get(0));
+        assertEquals(2, decoded.dnsAnswers.size());
+        assertEquals(1, decoded.dnsAdditionalRecords.size());
+        for (int i = 0; i < 2; i++) {
+            DNSRecord expected = response.dnsAnswers.get(i);
+            DNSRecord actual = decoded.dnsAnswers.get(i);
+            assertEquals(expected.NAME, actual.NAME);
+            assertEquals(expected.TYPE, actual.TYPE);
+            assertEquals(expected.CLASS, actual.CLASS);
+            assertEquals(expected.TTL, actual.TTL);
+            assertArrayEquals(expected.RDATA, actual.RDATA);
+        }
+
+        //Encoding the decoded message gives the same bytes back
+        assertArrayEquals(bytes, decoded.toBytes());
+    }
+
+    @Test
+    void repeatedNamesAreCompressed() throws IOException {
+        DNSMessage query = TestMessages.query((short) 1, "www.example.com", TestMessages.TYPE_A, false);
+        DNSMessage response = TestMessages.response(query,
+                TestMessages.a("www.example.com", 60, 1),
+                TestMessages.a("mail.example.com", 60, 2));
+        byte[] bytes = response.toBytes();
+
+        //The first answer's name is a pointer to the question name at offset 12
+        int firstAnswer = 12 + DomainName.of("www.example.com").wireLength() + 4;
+        assertEquals((byte) 0xC0, bytes[firstAnswer]);
+        assertEquals(12, bytes[firstAnswer + 1]);
+
+        //The second is "mail" followed by a pointer to "example.com" inside the question
+        int secondAnswer = firstAnswer + 2 + 10 + 4;
+        assertEquals(4, bytes[secondAnswer]);
+        assertEquals((byte) 0xC0, bytes[secondAnswer + 5]);
+        assertEquals(16, bytes[secondAnswer + 6]);
+
+        DNSMessage decoded = DNSMessage.decodeMessage(bytes);
+        assertEquals(DomainName.of("www.example.com"), decoded.dnsAnswers.get(0).NAME);
+        assertEquals(DomainName.of("mail.example.com"), decoded.dnsAnswers.get(1).NAME);
+    }
+
+    @Test
+    void pointerLoopIsRejected() {
+        //The question name is a pointer to itself
+        byte[] bytes = append(header(1, 0), (byte) 0xC0, (byte) 12, 0, 1, 0, 1);
+        assertThrows(IOException.class, () -> DNSMessage.decodeMessage(bytes));
+    }
+
+    @Test
+    void pointerPastTheEndIsRejected() {
+        byte[] bytes = append(header(1, 0), (byte) 0xC0, (byte) 0xFF, 0, 1, 0, 1);
+        assertThrows(IOException.class, () -> DNSMessage.decodeMessage(bytes));
+    }
+
+    @Test
+    void labelPastTheEndIsRejected() {
+        byte[] bytes = append(header(1, 0), (byte) 40, 'a', 'b');
+        assertThrows(IOException.class, () -> DNSMessage.decodeMessage(bytes));
+    }
+
+    @Test
+    void headerCountsTheBodyCannotHoldAreRejected() {
+        byte[] bytes = header(0xFFFF, 0xFFFF);
+        DNSMessageView view = DNSMessageView.wrap(bytes, bytes.length);
+
+        //Turned away up front, before an index is sized from the counts, rather than by running off the end
+        IOException e = assertThrows(IOException.class, view::questionEnd);
+        assertTrue(e.getMessage().contains("header counts"), e.getMessage());
+    }
+
+    @Test
+    void sameQuestionsIgnoresCase() throws IOException {
+        byte[] lower = TestMessages.query((short) 1, "www.example.com", TestMessages.TYPE_A, false).toBytes();
+        byte[] mixed = TestMessages.query((short) 2, "wWw.ExAmple.COM", TestMessages.TYPE_A, false).toBytes();
+        byte[] other = TestMessages.query((short) 3, "www.example.org", TestMessages.TYPE_A, false).toBytes();
+        DNSMessageView view = DNSMessageView.wrap(lower, lower.length);
+        assertTrue(view.sameQuestions(DNSMessageView.wrap(mixed, mixed.length)));
+        assertTrue(!view.sameQuestions(DNSMessageView.wrap(other, other.length)));
+    }
+
+
+    //A 12 byte query header with the given question and answer counts
+    private static byte[] header(int questions, int answers) {
+        ByteBuffer buffer = ByteBuffer.allocate(12);
+        buffer.putShort((short) 7).putShort((short) 0x0100);
+        buffer.putShort((short) questions).putShort((short) answers).putShort((short) 0).putShort((short) 0);
+        return buffer.array();
+    }
+
+    private static byte[] append(byte[] bytes, int... more) {
+        byte[] joined = new byte[bytes.length + more.length];
+        System.arraycopy(bytes, 0, joined, 0, bytes.length);
+        for (int i = 0; i < more.length; i++) {
+            joined[bytes.length + i] = (byte) more[i];
+        }
+        return joined;
+    }
+
+}
@@ -0,0 +1,56 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+//Parsing, comparing and interning names
+class DomainNameTest {
+
+    @Test
+    void parsesDottedNames() {
+        DomainName name = DomainName.of("www.example.com.");
+        assertEquals(3, name.labelCount());
+        assertEquals("www", name.label(0));
+        assertEquals("example", name.label(1));
+        assertEquals("com", name.label(2));
+        assertEquals(17, name.wireLength());
+        assertEquals("www.example.com", name.toString());
+        assertEquals(".", DomainName.of("").toString());
+    }
+
+    @Test
+    void comparesIgnoringCase() {
+        DomainName lower = DomainName.of("www.example.com");
+        DomainName mixed = DomainName.of("WwW.ExAmPlE.cOm");
+        assertEquals(lower, mixed);
+        assertEquals(lower.hashCode(), mixed.hashCode());
+    }
+
+    @Test
+    void internedNamesKeepTheirCase() throws IOException {
+        DomainName first = read("case.example.com");
+        DomainName again = read("case.example.com");
+        DomainName mixed = read("CaSe.ExAmPlE.com");
+
+        //The same bytes share one object, but a query in another case gets its own spelling back (0x20)
+        assertSame(first, again);
+        assertNotSame(first, mixed);
+        assertEquals(first, mixed);
+        assertEquals("CaSe.ExAmPlE.com", mixed.toString());
+        assertEquals("case.example.com", read("case.example.com").toString());
+    }
+
+
+    //Decode a name from its uncompressed wire form
+    private static DomainName read(String dotted) throws IOException {
+        DomainName name = DomainName.of(dotted);
+        ByteBuffer buffer = ByteBuffer.allocate(name.wireLength());
+        name.writeTo(buffer);
+        return DomainName.fromWire(buffer.flip(), 0);
+    }
+
+}
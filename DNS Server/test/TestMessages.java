@@ -0,0 +1,71 @@
+import java.time.Instant;
+
+//Builds the queries, records and responses the unit tests feed through the codec and the cache
+final class TestMessages {
+
+    static final short TYPE_A = 1;
+    static final short CLASS_IN = 1;
+
+    private TestMessages() {
+    }
+
+
+    //A recursive query for one name, with an OPT record if edns is set
+    static DNSMessage query(short id, String name, short type, boolean edns) {
+        DNSMessage query = new DNSMessage();
+        query.dnsHeader = new DNSHeader();
+        query.dnsHeader.ID = id;
+        query.dnsHeader.RD = true;
+        query.dnsHeader.QDCOUNT = 1;
+        query.dnsQuestions.add(question(name, type));
+        if (edns) {
+            query.dnsAdditionalRecords.add(DNSEdns.queryOpt());
+            query.dnsHeader.ARCOUNT = 1;
+        }
+        return query;
+    }
+
+    static DNSQuestion question(String name, short type) {
+        DNSQuestion question = new DNSQuestion();
+        question.QNAME = DomainName.of(name);
+        question.QType = type;
+        question.QClass = CLASS_IN;
+        return question;
+    }
+
+    //An IN record with the given RDATA
+    static DNSRecord record(String name, short type, int ttl, byte[] rdata) {
+        DNSRecord record = new DNSRecord();
+        record.creationTime = Instant.now();
+        record.NAME = DomainName.of(name);
+        record.TYPE = type;
+        record.CLASS = CLASS_IN;
+        record.TTL = ttl;
+        record.RDLENGTH = (short) rdata.length;
+        record.RDATA = rdata;
+        return record;
+    }
+
+    //An A record for 192.0.2.x
+    static DNSRecord a(String name, int ttl, int x) {
+        return record(name, TYPE_A, ttl, new byte[]{(byte) 192, 0, 2, (byte) x});
+    }
+
+    //The upstream response to a single question query, with the given answers
+    static DNSMessage response(DNSMessage query, DNSRecord... answers) {
+        DNSMessage response = new DNSMessage();
+        response.dnsHeader = new DNSHeader();
+        response.dnsHeader.ID = query.dnsHeader.ID;
+        response.dnsHeader.QR = true;
+        response.dnsHeader.RD = true;
+        response.dnsHeader.RA = true;
+        response.dnsHeader.QDCOUNT = 1;
+        response.dnsHeader.ANCOUNT = (short) answers.length;
+        response.dnsQuestions.add(query.dnsQuestions.get(0));
+        for (DNSRecord answer : answers) {
+            response.dnsAnswers.add(answer);
+        }
+        return response;
+    }
+
+}